@@ -1,5 +1,6 @@
 package com.jim;
 
+import com.jim.tracking.AsyncFilter;
 import com.jim.ui.HeadlessController;
 import com.jim.ui.MainController;
 import com.jim.ui.TrackerService;
@@ -39,7 +40,7 @@ public class Main extends Application {
         } else {
             controller = new HeadlessController();
         }
-        params.trParams.filters.add(controller);
+        params.trParams.filters.add(AsyncFilter.wrap(controller, params.trParams));
         controller.setParams(params);
 
         // Create a worker which does all the tracking work, and drives updates to the GUI
@@ -1,6 +1,9 @@
 package com.jim;
 
+import com.jim.tracking.AsyncFileSink;
+import com.jim.tracking.AsyncFilter;
 import com.jim.tracking.ForegroundSegmenter;
+import com.jim.tracking.GlobalChangeGuard;
 import com.jim.tracking.MotionDetector;
 import com.jim.tracking.Region;
 import com.jim.tracking.bg.BackgroundHandler;
@@ -11,15 +14,23 @@ import com.jim.util.Util;
 import org.opencv.core.Size;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Created by jim_m on 29-May-17.
+ *
+ * Once processing has started, parameters must only be changed via {@link #update(Consumer)}, which
+ * publishes a new immutable {@link #snapshot()}. Frame processing obtains a snapshot at the start
+ * of each frame, so every stage of the frame sees the same values without locking.
+ * Tracker and graphic parameters are copied into snapshots, while source video parameters are shared.
  */
 @SuppressWarnings("WeakerAccess")
 public class Params {
 
     public enum ThresholdType {OTSU, ADAPTIVE, GLOBAL}
+    public enum KernelShape {ELLIPSE, RECT}
 
     /** Options which describe the video input, and any transformations to be applied to it. */
     public static class SrcVideoParams {
@@ -71,7 +82,7 @@ public class Params {
     }
 
     /** Options which affect video playback, largely useful for debugging what is going on. */
-    public static class GraphicParams {
+    public static class GraphicParams implements Cloneable {
         public boolean running = true;
         public boolean quitWhenDone = true;
         public boolean showWindow = true;
@@ -95,10 +106,19 @@ public class Params {
         public boolean debug = true;
         public boolean showFeatures = true;
         public boolean showFlow = false;
+
+        /** Returns a shallow copy of these parameters. */
+        public GraphicParams copy() {
+            try {
+                return (GraphicParams) clone();
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     /** Parameters which control moving object detection and object tracking. */
-    public static class TrackerParams {
+    public static class TrackerParams implements Cloneable {
         public ForegroundSegmenter foregroundSegmenter;
         public BackgroundHandler backgroundHandler;
         /** Type of thresholding to apply. */
@@ -111,6 +131,11 @@ public class Params {
         public double threshholdC = 2;
         /** Value of threshold to use when applying global thresholding (see http://docs.opencv.org/3.2.0/d7/d1b/group__imgproc__misc.html#gae8a4a146d1ca78c626a53577199e9c57) */
         public double threshold = 127;
+        /** When using OTSU thresholding, the threshold is only recalculated every otsuInterval frames. */
+        public int otsuInterval = 1;
+        /** Frame statistics used by OTSU and ADAPTIVE thresholding are calculated
+         * from every statisticsSubsample'th pixel in each direction. */
+        public int statisticsSubsample = 1;
         /** Area of the smallest contour of interest (units are pixels in resized frame) */
         public double minContourArea = 60;
         /** Area of the largest contour of interest (units are pixels in resized frame) */
@@ -123,6 +148,8 @@ public class Params {
         public double maxLength = 150;
         /** Sizes of ellipses to be applied as the structuring element for dilation (i.e. to expand foreground areas) or erosion. Negative values indicate erosion, positive are dilation. */
         public double[] dilationErosionSize = new double[0];
+        /** Shape of the structuring elements for dilation and erosion. */
+        public KernelShape dilationErosionShape = KernelShape.ELLIPSE;
         /** Size of kernel when blurring image to reduce noise. */
         public int blurSize = 3;
         /** Equalize Y (luma) histogram) */
@@ -138,6 +165,8 @@ public class Params {
         public double ageWeighting = 0;
         /** If > 0, tracks which haven't been detected for this number of frames are deleted. */
         public int trackRetirementAge = 0;
+        /** If not null, frames where the lighting changes suddenly are ignored by the differences motion detector. */
+        public GlobalChangeGuard globalChangeGuard;
 
         /** Region of interest - used to ignore extraneous movement etc.
          * This region is in untransformed source image coordinates. */
@@ -145,14 +174,14 @@ public class Params {
         public Region getMask() {
             return mask;
         }
-        public synchronized void setMask(Region mask) {
+        public void setMask(Region mask) {
             this.mask = mask;
             ObserverMgr.getInstance().fire(this);
         }
-        public synchronized Region getTransformedMask() {
+        public Region getTransformedMask() {
             return transformedMask;
         }
-        public synchronized void setTransformedMask(Region transformedMask) {
+        public void setTransformedMask(Region transformedMask) {
             this.transformedMask = transformedMask;
         }
 
@@ -165,13 +194,77 @@ public class Params {
         /** Units in output CSV file. Not actually used for now. */
         public String outputUnits;
 
+        /** If not null, output filters (e.g. CSV and video writers, display) run on their own threads,
+         * and this determines what happens when they fall behind. */
+        public AsyncFilter.Policy asyncOutputPolicy;
+        /** Maximum number of frames queued for each asynchronous output filter. */
+        public int asyncOutputQueueSize = 8;
+        /** If not null, track files are written by a separate I/O thread with this configuration. */
+        public AsyncFileSink.Config asyncFileSink;
+
         /** Optional filters, applied in order. */
         public List<MotionDetector.Filter> filters = new ArrayList<>();
         public MotionDetector.Detector detector;
         public boolean correlateObjectsWithFeatures = false;
+
+        /** Returns a copy of these parameters. Processing stages (detector, filters etc.) are shared, not copied. */
+        public TrackerParams copy() {
+            try {
+                TrackerParams copy = (TrackerParams) clone();
+                copy.dilationErosionSize = dilationErosionSize.clone();
+                copy.filters = Collections.unmodifiableList(new ArrayList<>(filters));
+                return copy;
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
-    public final SrcVideoParams srcParams = new SrcVideoParams();
-    public final GraphicParams grParams = new GraphicParams();
-    public final TrackerParams trParams = new TrackerParams();
+    public final SrcVideoParams srcParams;
+    public final GraphicParams grParams;
+    public final TrackerParams trParams;
+
+    // Most recently published snapshot, only used in the original (mutable) parameters
+    private volatile Params snapshot;
+    private final Object updateLock = new Object();
+
+    public Params() {
+        this(new SrcVideoParams(), new GraphicParams(), new TrackerParams());
+    }
+
+    private Params(SrcVideoParams srcParams, GraphicParams grParams, TrackerParams trParams) {
+        this.srcParams = srcParams;
+        this.grParams = grParams;
+        this.trParams = trParams;
+    }
+
+    /** Returns the current values of these parameters. The returned object must not be modified.
+     * Repeated calls return the same object until {@link #update(Consumer)} is called. */
+    public Params snapshot() {
+        Params result = snapshot;
+        if (result == null) {
+            synchronized (updateLock) {
+                if (snapshot == null)
+                    snapshot = copy();
+                result = snapshot;
+            }
+        }
+        return result;
+    }
+
+    /** Changes parameter values, then publishes a new snapshot containing the changes.
+     * Safe to call from any thread. */
+    public void update(Consumer<Params> change) {
+        synchronized (updateLock) {
+            change.accept(this);
+            snapshot = copy();
+        }
+    }
+
+    // =================================================================
+    // Private methods
+
+    private Params copy() {
+        return new Params(srcParams, grParams.copy(), trParams.copy());
+    }
 }
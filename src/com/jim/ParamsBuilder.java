@@ -1,9 +1,14 @@
 package com.jim;
 
 import com.jim.tracking.BackgroundSubtractionSegmenter;
+import com.jim.tracking.AsyncFileSink;
+import com.jim.tracking.AsyncFilter;
 import com.jim.tracking.DebugOverlay;
 import com.jim.tracking.DifferenceDetector;
+import com.jim.tracking.FeatureGrid;
 import com.jim.tracking.FeedbackTracker;
+import com.jim.tracking.FlowClusterer;
+import com.jim.tracking.GlobalChangeGuard;
 import com.jim.tracking.ForegroundSegmenter;
 import com.jim.tracking.KNNForegroundSegmenter;
 import com.jim.tracking.KalmanTrack;
@@ -11,13 +16,21 @@ import com.jim.tracking.MOGForegroundSegmenter;
 import com.jim.tracking.MotionDetector;
 import com.jim.tracking.MultiTracker;
 import com.jim.tracking.OpticalFlowDetector;
+import com.jim.tracking.OutputUnits;
 import com.jim.tracking.Region;
+import com.jim.tracking.RotatingTrackWriter;
+import com.jim.tracking.TrackBinaryWriter;
 import com.jim.tracking.TrackCSVWriter;
+import com.jim.tracking.TrackIndex;
+import com.jim.tracking.TrackStreamWriter;
+import com.jim.tracking.TrackSummaryWriter;
+import com.jim.tracking.TrackWriter;
 import com.jim.tracking.VideoResult;
 import com.jim.tracking.bg.AveragingBackground;
 import com.jim.tracking.bg.BackgroundHandler;
 import com.jim.tracking.bg.FullMovie;
 import com.jim.tracking.bg.NoBackground;
+import com.jim.tracking.bg.RunningMedian;
 import com.jim.ui.OptionalFeedbackWindow;
 import com.jim.util.Dimension;
 import com.jim.util.ObserverMgr;
@@ -29,6 +42,7 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.UnrecognizedOptionException;
 import org.opencv.core.Core;
+import org.opencv.core.Size;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -36,8 +50,10 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Writer;
+import java.io.OutputStreamWriter;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import static com.jim.util.Util.join;
@@ -94,6 +110,9 @@ public class ParamsBuilder {
         // Options controlling moving object detection
 
         options.addOption(null, "motion-detector", true, "motion detector (optical-flow or differences, default " + motionDetector + ")");
+        options.addOption(null, "flow-grid", true, "maintain optical flow features on a grid (<columns>x<rows>[:<features-per-cell>])");
+        options.addOption(null, "flow-clusters", true, "group optical flow vectors into objects (<radius>[:<min-displacement>[:<min-points>[:<max-angle>]]])");
+        options.addOption(null, "correlate-features", false, "only track moving objects which are close to a detected feature");
         options.addOption(null, "foreground-segmenter", true, "foreground segmenter (background-subtraction, KNN or MOG, default " + fgSegmenter + ")");
         options.addOption(null, "resize", true, "resize input video to this width before processing (pixels)");
         options.addOption(null, "equalize", false, "equalize histogram on input video before processing");
@@ -103,7 +122,10 @@ public class ParamsBuilder {
         options.addOption(null, "threshold-C", true, "constant to use for adaptive thresholding (default " + params.trParams.threshholdC + ")");
         options.addOption(null, "threshold-blocksize", true, "block size to use for adaptive thresholding (must be odd, > 1, default " + params.trParams.thresholdBlockSize + ")");
         options.addOption(null, "threshold", true, "threshold value to use for global thresholding (1 - 254, default " + params.trParams.threshold + ")");
+        options.addOption(null, "otsu-interval", true, "recalculate the OTSU threshold every n frames (default " + params.trParams.otsuInterval + ")");
+        options.addOption(null, "statistics-subsample", true, "calculate thresholding statistics from every n'th pixel in each direction (default " + params.trParams.statisticsSubsample + ")");
         options.addOption(null, "dilation-erosion", true, "comma-separated list of dilation (+ve) or erosion (-ve) commands (default " + Util.join(params.trParams.dilationErosionSize, ",") + ")");
+        options.addOption(null, "dilation-erosion-shape", true, "shape of dilation/erosion kernels (" + join(Params.KernelShape.values(), ", ") + ", default " + params.trParams.dilationErosionShape + ")");
         options.addOption(null, "min-contour", true, "minimum contour area to track (default " + params.trParams.minContourArea + ")");
         options.addOption(null, "min-contour-length", true, "minimum length of contour to track (default " + params.trParams.minContourLength + ")");
         options.addOption(null, "max-contour", true, "maximum contour area to track (default " + params.trParams.maxContourArea + ")");
@@ -112,6 +134,7 @@ public class ParamsBuilder {
         options.addOption(null, "max-jump", true, "maximum distance between detections which can belong to the same track (default " + params.trParams.maxJump + ")");
         options.addOption(null, "min-gap", true, "multiple objects closer than this will not create new tracks (default " + params.trParams.minGap + ")");
         options.addOption(null, "age-weighting", true, "importance of track age when assigning tracks to detected objects (pixels/frame, default " + params.trParams.ageWeighting + ")");
+        options.addOption(null, "illumination-guard", true, "ignore frames with sudden lighting changes (<max-foreground-fraction>[:<max-mean-shift>[:<reset-background>]])");
         options.addOption(null, "background-method", true, "background calculation method (default " + bgDescr + ")");
         options.addOption(null, "mask-file", true, "JSON file defining region of interest");
         options.addOption(null, "mask", true, "If true and <filename>.json file exists, it is used as a mask file name (default " + checkForMask + ")");
@@ -124,11 +147,22 @@ public class ParamsBuilder {
         options.addOption(null, "no-tracks-after",true, "if specified, tracks are not created after the specified frame");
 
         // Output file options
-        options.addOption("o",  "output", true, "output CSV or video file name");
+        options.addOption("o",  "output", true, "output CSV, compressed CSV (.csv.gz), binary track (.ytb) or video file name");
         options.addOption(null, "csv", false, "writes a CSV file with name based on the video file name");
         options.addOption(null, "csv-comment-prefix", true, "prefix for comments in CSV file - runtime parameters will be written to the file");
         options.addOption(null, "csv-units", true, "units to output points in, either pixels or view-width/view-height units (default units of view-width/-height)");
+        options.addOption(null, "csv-gzip", false, "if --csv is specified, writes a gzip compressed CSV file");
+        options.addOption(null, "csv-decimals", true, "number of decimal places for times and positions in CSV file (default full precision)");
         options.addOption(null, "output-all-frames", false, "write duplicated consecutive track positions to CSV file");
+        options.addOption(null, "track-summary", true, "write a CSV file with summary statistics for each track (requires --kalman)");
+        options.addOption(null, "track-summary-retired", false, "if --track-summary is specified, write the summary for each track as soon as it is retired");
+        options.addOption(null, "stream-tracks", true, "publish track rows to clients of a local TCP port (<port>[:<format>[:<policy>[:<buffer-KB>]]], format is ndjson or binary, policy is drop or block)");
+        options.addOption(null, "rotate-output", true, "start a new numbered track file every so often (<units>:<size>, units is frames, minutes or MB)");
+        options.addOption(null, "simplify", true, "only write the track positions needed to reconstruct tracks within a tolerance (<tolerance>[:<window>])");
+        options.addOption(null, "confirm-tracks", true, "only write tracks once they are confirmed (<min-displacement>[:<min-duration>[:<min-points>[:<max-rows>]]])");
+        options.addOption(null, "track-index", false, "write an index of tracks (<track-file>.idx) alongside each track file");
+        options.addOption(null, "async-output", true, "write output and display on separate threads (<policy>[:<queue-size>], policy is block or drop)");
+        options.addOption(null, "async-file-io", true, "write track files on a separate I/O thread (<flush-interval-ms>[:<block-size-KB>[:<blocks>]])");
 
         // Note I am using DefaultParser rather the CommandLineParser so I can use the properties file defaults (see parse below)
         DefaultParser parser = new DefaultParser();
@@ -193,12 +227,16 @@ public class ParamsBuilder {
         params.grParams.playbackSpeed = doubleArg(cmd, "s", params.grParams.playbackSpeed);
         params.srcParams.resizeWidth = doubleArg(cmd, "resize", params.srcParams.resizeWidth);
         params.trParams.equalize = cmd.hasOption("equalize");
+        params.trParams.correlateObjectsWithFeatures = cmd.hasOption("correlate-features");
         params.trParams.thresholdMethod = Params.ThresholdType.valueOf(stringArg(cmd,"threshold-method", params.trParams.thresholdMethod.toString()).toUpperCase());
         params.trParams.thresholdInvert = booleanArg(cmd, "threshold-invert", params.trParams.thresholdInvert);
         params.trParams.threshholdC = doubleArg(cmd, "threshold-C", params.trParams.threshholdC);
         params.trParams.thresholdBlockSize = intArg(cmd, "threshold-blocksize", params.trParams.thresholdBlockSize);
         params.trParams.threshold = doubleArg(cmd, "threshold", params.trParams.threshold);
+        params.trParams.otsuInterval = Math.max(1, intArg(cmd, "otsu-interval", params.trParams.otsuInterval));
+        params.trParams.statisticsSubsample = Math.max(1, intArg(cmd, "statistics-subsample", params.trParams.statisticsSubsample));
         params.trParams.dilationErosionSize = doubleArrayArg(cmd, "dilation-erosion", params.trParams.dilationErosionSize);
+        params.trParams.dilationErosionShape = Params.KernelShape.valueOf(stringArg(cmd, "dilation-erosion-shape", params.trParams.dilationErosionShape.toString()).toUpperCase());
         params.trParams.blurSize = (int) doubleArg(cmd, "blur-size", params.trParams.blurSize);
         params.trParams.minContourArea = doubleArg(cmd, "min-contour", params.trParams.minContourArea);
         params.trParams.maxContourArea = doubleArg(cmd, "max-contour", params.trParams.maxContourArea);
@@ -210,13 +248,15 @@ public class ParamsBuilder {
         params.trParams.ageWeighting = doubleArg(cmd, "age-weighting", params.trParams.ageWeighting);
         params.trParams.terminationBorder = doubleArg(cmd, "termination-border", params.trParams.terminationBorder);
         params.trParams.trackRetirementAge = intArg(cmd, "retirement-age", params.trParams.trackRetirementAge);
+        if (cmd.hasOption("illumination-guard"))
+            params.trParams.globalChangeGuard = globalChangeGuardFromName(cmd.getOptionValue("illumination-guard"));
 
         // Filters (order is important)
         final boolean hasKalmanTracker = cmd.hasOption("k");
         if(hasKalmanTracker) {
             firstTrackingFrame = intArg(cmd, "first-tracking-frame", firstTrackingFrame);
             int noTracksAfter = intArg(cmd, "no-tracks-after", Integer.MAX_VALUE);
-            params.trParams.filters.add(new MultiTracker(new KalmanTrack.Cfg(cmd.getOptionValue("k")), firstTrackingFrame, noTracksAfter));
+            params.trParams.filters.add(new MultiTracker(new KalmanTrack.Cfg(cmd.getOptionValue("k")), firstTrackingFrame, noTracksAfter, cmd.hasOption("t")));
         }
         if(cmd.hasOption("t"))
             params.trParams.filters.add(new FeedbackTracker());
@@ -226,19 +266,39 @@ public class ParamsBuilder {
         if (cmd.hasOption("motion-detector"))
             motionDetector = cmd.getOptionValue("motion-detector");
         params.trParams.detector = detectorFromName(motionDetector);
+        if (cmd.hasOption("flow-grid")) {
+            if (params.trParams.detector instanceof OpticalFlowDetector)
+                ((OpticalFlowDetector) params.trParams.detector).setFeatureGrid(featureGridFromName(cmd.getOptionValue("flow-grid")));
+            else
+                System.err.println("Ignoring option flow-grid, it only applies to the optical-flow motion detector");
+        }
+        if (cmd.hasOption("flow-clusters")) {
+            if (params.trParams.detector instanceof OpticalFlowDetector)
+                ((OpticalFlowDetector) params.trParams.detector).setClusterer(flowClustererFromName(cmd.getOptionValue("flow-clusters")));
+            else
+                System.err.println("Ignoring option flow-clusters, it only applies to the optical-flow motion detector");
+        }
         params.trParams.foregroundSegmenter = fgSegmenterFromName(stringArg(cmd, "foreground-segmenter", fgSegmenter));
         if (params.trParams.detector == null || params.trParams.foregroundSegmenter == null) {
 //            printUsageAndExit(options);
             System.exit(1);
         }
 
-        // Output - can output either CVS file or video which tracks moving object
-        TrackCSVWriter writer = null;
+        if (cmd.hasOption("async-file-io"))
+            params.trParams.asyncFileSink = asyncFileSinkFromName(cmd.getOptionValue("async-file-io"));
+
+        // Output - can output either CVS or binary track file, or video which tracks moving object
+        // Track files which record the runtime parameters. CSV files only record them if there is a comment prefix
+        List<TrackWriter> writers = new ArrayList<>();
+        boolean hasCSVOutput = false;
         if(cmd.hasOption("output")) {
             for (String fileName : cmd.getOptionValues("o")) {
-                // Does it look like a CSV file name?
-                if (TrackCSVWriter.canHandle(fileName)) {
-                    writer = getTrackCSVWriter(params, cmd, hasKalmanTracker, fileName);
+                // Does it look like a CSV or binary track file name?
+                if (TrackCSVWriter.canHandle(fileName) || TrackBinaryWriter.canHandle(fileName)) {
+                    TrackWriter writer = getTrackWriter(params, cmd, hasKalmanTracker, fileName);
+                    hasCSVOutput |= TrackCSVWriter.canHandle(fileName);
+                    if (TrackBinaryWriter.canHandle(fileName) || cmd.hasOption("csv-comment-prefix"))
+                        writers.add(writer);
                 } else {
                     // Assume it's a video file
                     params.trParams.filters.add(new VideoResult(fileName, params.grParams));
@@ -265,12 +325,28 @@ public class ParamsBuilder {
 
         maybeSetMask(cmd, params.srcParams.videoFile, checkForMask, params);
 
-        if(cmd.hasOption("csv") && writer == null)
-            writer = getTrackCSVWriter(params, cmd, hasKalmanTracker, TrackCSVWriter.deriveName(params.srcParams.videoFile));
+        if(cmd.hasOption("csv") && !hasCSVOutput) {
+            TrackWriter writer = getTrackWriter(params, cmd, hasKalmanTracker, TrackCSVWriter.deriveName(params.srcParams.videoFile, cmd.hasOption("csv-gzip")));
+            if (cmd.hasOption("csv-comment-prefix"))
+                writers.add(writer);
+        }
+
+        TrackSummaryWriter summaryWriter = null;
+        if (cmd.hasOption("track-summary"))
+            summaryWriter = getTrackSummaryWriter(params, cmd, cmd.getOptionValue("track-summary"));
+
+        if (cmd.hasOption("stream-tracks"))
+            getTrackStreamWriter(params, cmd, hasKalmanTracker, cmd.getOptionValue("stream-tracks"));
 
         if(cmd.hasOption("debug-overlay"))
             params.trParams.filters.add(new DebugOverlay());
 
+        // Optionally run output filters on their own threads
+        if (cmd.hasOption("async-output")) {
+            asyncOutputFromName(cmd.getOptionValue("async-output"), params.trParams);
+            params.trParams.filters.replaceAll(filter -> AsyncFilter.wrap(filter, params.trParams));
+        }
+
         if (params.grParams.verbose) {
             System.out.println("Tracking video " + params.srcParams.videoFile);
             System.out.println("OpenCV version " + Core.VERSION);
@@ -289,18 +365,22 @@ public class ParamsBuilder {
         // Register available background handlers
         AveragingBackground.register();
         FullMovie.register();
+        RunningMedian.register();
         NoBackground.register();    // Allow no background, in which case the original image is segmented without first subtracting background
         params.trParams.backgroundHandler = BackgroundHandler.getHandler(bgDescr, params.srcParams.videoFile, params);
         if (params.grParams.verbose) {
             System.out.println("Background handler = " + params.trParams.backgroundHandler);
         }
 
-        // Optionally add runtime parameters to CSV file as a comment
-        if (cmd.hasOption("csv-comment-prefix") && writer != null) {
-            writer.setCommentPrefix(cmd.getOptionValue("csv-comment-prefix"));
+        // Optionally add runtime parameters to CSV file as a comment. Binary files always contain them as metadata
+        for (TrackWriter writer : writers) {
             writer.writeComment(params.srcParams.videoFile);
             writer.writeComment(Util.join(args, " "));
         }
+        if (summaryWriter != null && cmd.hasOption("csv-comment-prefix")) {
+            summaryWriter.writeComment(params.srcParams.videoFile);
+            summaryWriter.writeComment(Util.join(args, " "));
+        }
 
         return params;
     }
@@ -455,6 +535,135 @@ public class ParamsBuilder {
         return null;
     }
 
+    private static GlobalChangeGuard globalChangeGuardFromName(String descr) {
+        String[] parts = descr.split(":");
+        try {
+            double maxFraction = Double.parseDouble(parts[0]);
+            double maxMeanShift = parts.length > 1 ? Double.parseDouble(parts[1]) : 0;
+            boolean reset = parts.length > 2 && Boolean.parseBoolean(parts[2]);
+            if (parts.length <= 3 && maxFraction >= 0 && maxFraction <= 1 && maxMeanShift >= 0)
+                return new GlobalChangeGuard(maxFraction, maxMeanShift, reset);
+        } catch (NumberFormatException e) {
+            // Fall through to error
+        }
+        throw new RuntimeException("Invalid value (" + descr + ") for option illumination-guard, " +
+                "expected <max-foreground-fraction>[:<max-mean-shift>[:<reset-background>]]");
+    }
+
+    private static void asyncOutputFromName(String descr, Params.TrackerParams trParams) {
+        String[] parts = descr.split(":");
+        try {
+            AsyncFilter.Policy policy = AsyncFilter.Policy.valueOf(parts[0].toUpperCase());
+            int queueSize = parts.length > 1 ? Integer.parseInt(parts[1]) : trParams.asyncOutputQueueSize;
+            if (parts.length <= 2 && queueSize > 0) {
+                trParams.asyncOutputPolicy = policy;
+                trParams.asyncOutputQueueSize = queueSize;
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            // Fall through to error (NumberFormatException is an IllegalArgumentException)
+        }
+        throw new RuntimeException("Invalid value (" + descr + ") for option async-output, " +
+                "expected <policy>[:<queue-size>], where policy is one of (" + join(AsyncFilter.Policy.values(), ", ").toLowerCase() + ")");
+    }
+
+    private static AsyncFileSink.Config asyncFileSinkFromName(String descr) {
+        String[] parts = descr.split(":");
+        try {
+            long flushInterval = Long.parseLong(parts[0]);
+            int blockSize = parts.length > 1 ? Integer.parseInt(parts[1]) * 1024 : AsyncFileSink.Config.DEFAULT_BLOCK_SIZE;
+            int blocks = parts.length > 2 ? Integer.parseInt(parts[2]) : AsyncFileSink.Config.DEFAULT_BLOCKS;
+            if (parts.length <= 3)
+                return new AsyncFileSink.Config(flushInterval, blockSize, blocks);
+        } catch (IllegalArgumentException e) {
+            // Fall through to error (NumberFormatException is an IllegalArgumentException)
+        }
+        throw new RuntimeException("Invalid value (" + descr + ") for option async-file-io, " +
+                "expected <flush-interval-ms>[:<block-size-KB>[:<blocks>]], where blocks is at least 2");
+    }
+
+    private static RotatingTrackWriter rotatingTrackWriterFromName(String descr, String fileName, CommandLine cmd, Params params,
+                                                                   RotatingTrackWriter.PartOpener opener) throws IOException {
+        String[] parts = descr.split(":");
+        try {
+            RotatingTrackWriter.Unit unit = RotatingTrackWriter.Unit.valueOf(parts[0].toUpperCase());
+            double size = Double.parseDouble(parts[1]);
+            if (parts.length == 2 && size > 0)
+                return new RotatingTrackWriter(fileName, unit, size, opener, cmd.hasOption("output-all-frames"), params.srcParams.fps);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            // Fall through to error (NumberFormatException is an IllegalArgumentException)
+        }
+        throw new RuntimeException("Invalid value (" + descr + ") for option rotate-output, " +
+                "expected <units>:<size>, where units is frames, minutes or MB");
+    }
+
+    private static void setTrackSimplification(TrackWriter writer, String descr) {
+        String[] parts = descr.split(":");
+        try {
+            double tolerance = Double.parseDouble(parts[0]);
+            int window = parts.length > 1 ? Integer.parseInt(parts[1]) : TrackWriter.DEFAULT_SIMPLIFICATION_WINDOW;
+            if (parts.length <= 2 && tolerance > 0 && window > 0) {
+                writer.setSimplification(tolerance, window);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to error
+        }
+        throw new RuntimeException("Invalid value (" + descr + ") for option simplify, " +
+                "expected <tolerance>[:<window>]");
+    }
+
+    private static void setTrackConfirmation(TrackWriter writer, String descr) {
+        String[] parts = descr.split(":");
+        try {
+            double minDisplacement = Double.parseDouble(parts[0]);
+            double minDuration = parts.length > 1 ? Double.parseDouble(parts[1]) : 0;
+            int minPoints = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
+            int maxRows = parts.length > 3 ? Integer.parseInt(parts[3]) : Math.max(minPoints, TrackWriter.DEFAULT_MAX_PENDING_ROWS);
+            if (parts.length <= 4 && minDisplacement >= 0 && minDuration >= 0 && minPoints >= 0 && maxRows >= Math.max(1, minPoints)) {
+                writer.setConfirmation(minDisplacement, minDuration, minPoints, maxRows);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to error
+        }
+        throw new RuntimeException("Invalid value (" + descr + ") for option confirm-tracks, " +
+                "expected <min-displacement>[:<min-duration>[:<min-points>[:<max-rows>]]], where max-rows is at least min-points");
+    }
+
+    private static FeatureGrid featureGridFromName(String descr) {
+        String[] parts = descr.split(":");
+        try {
+            Size size = Util.parseSize(parts[0]);
+            int cols = (int) size.width;
+            int rows = (int) size.height;
+            // By default, share the same total number of features as the full frame detector
+            int perCell = parts.length > 1 ? Integer.parseInt(parts[1]) : Math.max(1, 500 / (cols * rows));
+            if (parts.length <= 2)
+                return new FeatureGrid(cols, rows, perCell);
+        } catch (RuntimeException e) {
+            // Fall through to error
+        }
+        throw new RuntimeException("Invalid value (" + descr + ") for option flow-grid, " +
+                "expected <columns>x<rows>[:<features-per-cell>]");
+    }
+
+    private static FlowClusterer flowClustererFromName(String descr) {
+        String[] parts = descr.split(":");
+        try {
+            double radius = Double.parseDouble(parts[0]);
+            double minDisplacement = parts.length > 1 ? Double.parseDouble(parts[1]) : 0.5;
+            int minPoints = parts.length > 2 ? Integer.parseInt(parts[2]) : 3;
+            double maxAngle = parts.length > 3 ? Double.parseDouble(parts[3]) : 30;
+            if (parts.length <= 4)
+                return new FlowClusterer(minDisplacement, radius, minPoints, maxAngle);
+        } catch (NumberFormatException e) {
+            // Fall through to error
+        }
+        throw new RuntimeException("Invalid value (" + descr + ") for option flow-clusters, " +
+                "expected <radius>[:<min-displacement>[:<min-points>[:<max-angle>]]]");
+    }
+
     private static ForegroundSegmenter fgSegmenterFromName(String segmenter) {
         String[] parts = segmenter.split(":");
         String name = parts[0];
@@ -466,25 +675,40 @@ public class ParamsBuilder {
                 if (parts.length == 1)
                     return new MOGForegroundSegmenter();
                 else {
-                    if (parts.length == 4)
-                        return new MOGForegroundSegmenter(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Boolean.parseBoolean(parts[3]));
+                    if (parts.length >= 4 && parts.length <= 7)
+                        return new MOGForegroundSegmenter(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Boolean.parseBoolean(parts[3]),
+                                segmenterScale(parts), segmenterGrey(parts), segmenterUpdateInterval(parts));
                 }
                 break;
             case "KNN":
                 if (parts.length == 1)
                     return new KNNForegroundSegmenter();
                 else {
-                    if (parts.length == 4)
-                        return new KNNForegroundSegmenter(Integer.parseInt(parts[1]), Double.parseDouble(parts[2]), Boolean.parseBoolean(parts[3]));
+                    if (parts.length >= 4 && parts.length <= 7)
+                        return new KNNForegroundSegmenter(Integer.parseInt(parts[1]), Double.parseDouble(parts[2]), Boolean.parseBoolean(parts[3]),
+                                segmenterScale(parts), segmenterGrey(parts), segmenterUpdateInterval(parts));
                 }
                 break;
         }
         System.err.println("Invalid foreground segmenter '" + name + "', require one of " +
-                "(\n\tbackground-subtraction, \n\tMOG[:history:varThreshold:detectShadows]), " +
-                "\n\tKNN[:history:dist2Threshold:detectShadows])");
+                "(\n\tbackground-subtraction, \n\tMOG[:history:varThreshold:detectShadows[:scale[:grey[:updateInterval]]]]), " +
+                "\n\tKNN[:history:dist2Threshold:detectShadows[:scale[:grey[:updateInterval]]]])");
         return null;
     }
 
+    // Optional trailing arguments common to the MOG and KNN segmenters
+    private static double segmenterScale(String[] parts) {
+        return parts.length > 4 ? Double.parseDouble(parts[4]) : 1;
+    }
+
+    private static boolean segmenterGrey(String[] parts) {
+        return parts.length > 5 && Boolean.parseBoolean(parts[5]);
+    }
+
+    private static int segmenterUpdateInterval(String[] parts) {
+        return parts.length > 6 ? Integer.parseInt(parts[6]) : 1;
+    }
+
     private static void maybeSetMask(CommandLine cmd, String videoFile, boolean checkForMask, Params params) {
         boolean onlyIfExists = booleanArg(cmd, "mask", checkForMask);
         String fileName;
@@ -513,62 +737,138 @@ public class ParamsBuilder {
         }
     }
 
-    private static TrackCSVWriter getTrackCSVWriter(Params params, CommandLine cmd, boolean hasKalmanTracker, String fileName) {
-        ChangeableCsvWriter writer = null;
+    private static TrackWriter getTrackWriter(Params params, CommandLine cmd, boolean hasKalmanTracker, String fileName) {
+        TrackWriter writer = null;
         try {
-            writer = new ChangeableCsvWriter(new FileWriter(fileName), cmd.hasOption("output-all-frames"), params.srcParams.fps) {
-                @Override
-                public void notify(Object object) {
-                    Params.SrcVideoParams srcParams = (Params.SrcVideoParams) object;
-                    setScale(srcParams.scale);
-                }
-            };
-            writer.setWriteTracks(hasKalmanTracker);
-
-            // Handle optional output units. Default to units in user specified view width or height, otherwise fallback to pixels
-            String widthUnits = params.srcParams.width != null ? params.srcParams.width.getUnits() : null;
-            String heightUnits = params.srcParams.height!= null ? params.srcParams.height.getUnits() : null;
-            boolean useWidthUnits = widthUnits != null;
-            boolean useHeightUnits = heightUnits != null;
-            if (cmd.hasOption("csv-units")) {
-                params.trParams.outputUnits = cmd.getOptionValue("csv-units");
-                writer.setOutputUnitsName(params.trParams.outputUnits);
-                // Units must be either the same as the units of a user specified view width/height or else pixels
-                /*if (units.equals(widthUnits))
-                    useWidthUnits = true;
-                else if (units.equals(heightUnits))
-                    useHeightUnits = true;
-                else*/ if ("px".equals(params.trParams.outputUnits) || "pixels".equals(params.trParams.outputUnits))
-                    useWidthUnits = useHeightUnits = false;
-                else if (Double.isNaN(params.srcParams.scale))
-                    throw new RuntimeException("Invalid csv units (" + params.trParams.outputUnits + "), must use the same units as view width or height, or else px");
-            }
-            if (params.srcParams.scale > 0) {
-                if (useWidthUnits || useHeightUnits)
-                    throw new RuntimeException("Only one of view-scale, view-width and view-height may be specified");
-                writer.setScale(params.srcParams.scale);
+            if (cmd.hasOption("rotate-output"))
+                writer = rotatingTrackWriterFromName(cmd.getOptionValue("rotate-output"), fileName, cmd, params,
+                        partName -> openTrackFile(params, cmd, partName));
+            else
+                writer = openTrackFile(params, cmd, fileName);
+            if (cmd.hasOption("track-index"))
+                writer.setIndexFile(TrackIndex.deriveName(fileName));
+            if (cmd.hasOption("simplify")) {
+                if (cmd.hasOption("output-all-frames"))
+                    throw new RuntimeException("Only one of output-all-frames and simplify may be specified");
+                setTrackSimplification(writer, cmd.getOptionValue("simplify"));
             }
-            if (useWidthUnits)
-                writer.setUserUnitsWidth(params.srcParams.width.getDistance());
-            else if (useHeightUnits)
-                writer.setUserUnitsHeight(params.srcParams.height.getDistance());
+            if (cmd.hasOption("confirm-tracks"))
+                setTrackConfirmation(writer, cmd.getOptionValue("confirm-tracks"));
+            addTrackWriter(params, cmd, hasKalmanTracker, writer);
+        } catch (IOException e) {
+            System.err.println("Unable to open output track file " + fileName + ": " + e.getLocalizedMessage());
+            System.exit(1);
+        }
+        return writer;
+    }
 
-            params.trParams.filters.add(writer);
+    /** Opens a CSV or binary track file. */
+    private static TrackWriter openTrackFile(Params params, CommandLine cmd, String fileName) throws IOException {
+        // Optionally write the file on a separate thread. Compressed files are always compressed on a separate thread
+        final boolean compress = TrackCSVWriter.isCompressed(fileName);
+        AsyncFileSink.Config sinkConfig = params.trParams.asyncFileSink;
+        if (sinkConfig == null && compress)
+            sinkConfig = AsyncFileSink.Config.DEFAULT;
+        final AsyncFileSink sink = sinkConfig != null ? new AsyncFileSink(fileName, sinkConfig, compress) : null;
+        if (TrackBinaryWriter.canHandle(fileName)) {
+            return sink != null ? new TrackBinaryWriter(sink, cmd.hasOption("output-all-frames"), params.srcParams.fps, TrackBinaryWriter.DEFAULT_CHUNK_ROWS)
+                    : new TrackBinaryWriter(fileName, cmd.hasOption("output-all-frames"), params.srcParams.fps);
+        }
+        TrackCSVWriter csvWriter = new TrackCSVWriter(sink != null ? new OutputStreamWriter(sink) : new FileWriter(fileName),
+                cmd.hasOption("output-all-frames"), params.srcParams.fps);
+        final int decimals = intArg(cmd, "csv-decimals", -1);
+        if (decimals < -1 || decimals > 9)
+            throw new RuntimeException("Invalid value (" + decimals + ") for option csv-decimals, expected 0 - 9");
+        csvWriter.setDecimals(decimals);
+        if (cmd.hasOption("csv-comment-prefix"))
+            csvWriter.setCommentPrefix(cmd.getOptionValue("csv-comment-prefix"));
+        return csvWriter;
+    }
 
-            // Listen for changes to scale
-            ObserverMgr.getInstance().observe(params.srcParams, writer);
+    private static TrackSummaryWriter getTrackSummaryWriter(Params params, CommandLine cmd, String fileName) {
+        if (!cmd.hasOption("k"))
+            throw new RuntimeException("Option track-summary requires option kalman");
+        TrackSummaryWriter writer = null;
+        try {
+            writer = new TrackSummaryWriter(new FileWriter(fileName), cmd.hasOption("track-summary-retired"), params.srcParams.fps);
+            if (cmd.hasOption("csv-comment-prefix"))
+                writer.setCommentPrefix(cmd.getOptionValue("csv-comment-prefix"));
+            addOutputFilter(params, cmd, writer, writer.getUnits());
+        } catch (IOException e) {
+            System.err.println("Unable to open track summary file " + fileName + ": " + e.getLocalizedMessage());
+            System.exit(1);
+        }
+        return writer;
+    }
 
+    private static TrackWriter getTrackStreamWriter(Params params, CommandLine cmd, boolean hasKalmanTracker, String descr) {
+        TrackStreamWriter writer = null;
+        try {
+            writer = trackStreamWriterFromName(descr, cmd, params);
+            System.out.println("Streaming tracks on local port " + writer.getPort());
+            addTrackWriter(params, cmd, hasKalmanTracker, writer);
         } catch (IOException e) {
-            System.err.println("Unable to open output CSVWriter file " + fileName + ": " + e.getLocalizedMessage());
+            System.err.println("Unable to stream tracks (" + descr + "): " + e.getLocalizedMessage());
             System.exit(1);
         }
         return writer;
     }
-}
 
-/** A TrackCsvWriter which is an Observer. */
-abstract class ChangeableCsvWriter extends TrackCSVWriter implements ObserverMgr.Observer {
-    ChangeableCsvWriter(Writer writer, boolean writeAllFrames, int fps) throws IOException {
-        super(writer, writeAllFrames, fps);
+    private static TrackStreamWriter trackStreamWriterFromName(String descr, CommandLine cmd, Params params) throws IOException {
+        String[] parts = descr.split(":");
+        try {
+            int port = Integer.parseInt(parts[0]);
+            TrackStreamWriter.Format format = parts.length > 1 ? TrackStreamWriter.Format.valueOf(parts[1].toUpperCase()) : TrackStreamWriter.Format.NDJSON;
+            TrackStreamWriter.Policy policy = parts.length > 2 ? TrackStreamWriter.Policy.valueOf(parts[2].toUpperCase()) : TrackStreamWriter.Policy.DROP;
+            int bufferSize = parts.length > 3 ? Integer.parseInt(parts[3]) * 1024 : TrackStreamWriter.DEFAULT_BUFFER_SIZE;
+            if (parts.length <= 4 && port >= 0 && port <= 65535 && bufferSize > 0)
+                return new TrackStreamWriter(port, format, policy, bufferSize, cmd.hasOption("output-all-frames"), params.srcParams.fps);
+        } catch (IllegalArgumentException e) {
+            // Fall through to error (NumberFormatException is an IllegalArgumentException)
+        }
+        throw new RuntimeException("Invalid value (" + descr + ") for option stream-tracks, " +
+                "expected <port>[:<format>[:<policy>[:<buffer-KB>]]], where format is ndjson or binary, and policy is drop or block");
+    }
+
+    /** Configures a track writer and its output units, and adds it to the filters. */
+    private static void addTrackWriter(Params params, CommandLine cmd, boolean hasKalmanTracker, TrackWriter writer) {
+        writer.setWriteTracks(hasKalmanTracker);
+        addOutputFilter(params, cmd, writer, writer.getUnits());
+    }
+
+    /** Configures the output units of an output filter and adds it to the filters. */
+    private static void addOutputFilter(Params params, CommandLine cmd, MotionDetector.SnapshotFilter filter, OutputUnits units) {
+        // Handle optional output units. Default to units in user specified view width or height, otherwise fallback to pixels
+        String widthUnits = params.srcParams.width != null ? params.srcParams.width.getUnits() : null;
+        String heightUnits = params.srcParams.height!= null ? params.srcParams.height.getUnits() : null;
+        boolean useWidthUnits = widthUnits != null;
+        boolean useHeightUnits = heightUnits != null;
+        if (cmd.hasOption("csv-units")) {
+            params.trParams.outputUnits = cmd.getOptionValue("csv-units");
+            units.setName(params.trParams.outputUnits);
+            // Units must be either the same as the units of a user specified view width/height or else pixels
+            /*if (units.equals(widthUnits))
+                useWidthUnits = true;
+            else if (units.equals(heightUnits))
+                useHeightUnits = true;
+            else*/ if ("px".equals(params.trParams.outputUnits) || "pixels".equals(params.trParams.outputUnits))
+                useWidthUnits = useHeightUnits = false;
+            else if (Double.isNaN(params.srcParams.scale))
+                throw new RuntimeException("Invalid csv units (" + params.trParams.outputUnits + "), must use the same units as view width or height, or else px");
+        }
+        if (params.srcParams.scale > 0) {
+            if (useWidthUnits || useHeightUnits)
+                throw new RuntimeException("Only one of view-scale, view-width and view-height may be specified");
+            units.setScale(params.srcParams.scale);
+        }
+        if (useWidthUnits)
+            units.setUserUnitsWidth(params.srcParams.width.getDistance());
+        else if (useHeightUnits)
+            units.setUserUnitsHeight(params.srcParams.height.getDistance());
+
+        params.trParams.filters.add(filter);
+
+        // Listen for changes to scale
+        ObserverMgr.getInstance().observe(params.srcParams, object -> units.setScale(((Params.SrcVideoParams) object).scale));
     }
 }
@@ -0,0 +1,376 @@
+package com.jim.tracking;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes a file on its own thread, so that slow file systems don't delay frame processing.
+ *
+ * Data is copied into a fixed number of large blocks. Full blocks are queued and written to the file
+ * by an I/O thread, then reused. Partially filled blocks are queued when they are flushed, or when
+ * data is written and the flush interval has elapsed since the last block was queued.
+ * If all blocks are waiting to be written, the writing thread waits (stalls) until one is free.
+ *
+ * If a write fails, the exception is thrown by the next write, flush or close.
+ *
+ * Text files can optionally be gzip compressed, which is also performed by the I/O thread.
+ * The compressor is flushed after each block, at the end of the last complete line in the block,
+ * so if writing is interrupted (e.g. by a crash), the file can be decompressed up to at least the
+ * last complete line of the last block which was written. Decompression may also produce a partial line
+ * after that, which should be ignored.
+ */
+public class AsyncFileSink extends OutputStream implements WritableByteChannel {
+
+    /** Sink configuration. */
+    public static class Config {
+        public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+        public static final int DEFAULT_BLOCKS = 8;
+        /** Configuration used for compressed files when none is specified. */
+        public static final Config DEFAULT = new Config(1000, DEFAULT_BLOCK_SIZE, DEFAULT_BLOCKS);
+
+        /** Maximum time (milliseconds) that data is buffered before being queued for writing, 0 to only write full blocks. */
+        public final long flushInterval;
+        /** Size in bytes of each block. */
+        public final int blockSize;
+        /** Number of blocks. */
+        public final int blocks;
+
+        public Config(long flushInterval, int blockSize, int blocks) {
+            if (flushInterval < 0)
+                throw new IllegalArgumentException("Flush interval must be >= 0, found " + flushInterval);
+            if (blockSize < 1)
+                throw new IllegalArgumentException("Block size must be > 0, found " + blockSize);
+            if (blocks < 2)
+                throw new IllegalArgumentException("Number of blocks must be > 1, found " + blocks);
+            this.flushInterval = flushInterval;
+            this.blockSize = blockSize;
+            this.blocks = blocks;
+        }
+
+        @Override
+        public String toString() {
+            return "flush interval " + flushInterval + " ms, " + blocks + " blocks of " + blockSize / 1024 + " KB";
+        }
+    }
+
+    // Queued to tell the I/O thread to finish
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final String fileName;
+    private final Config config;
+    private final FileChannel channel;
+    private final boolean compress;
+    private final BlockingQueue<ByteBuffer> filled;
+    private final BlockingQueue<ByteBuffer> free;
+    private final Thread thread;
+    private ByteBuffer current;
+    private long lastQueued;
+    private boolean closed;
+    private volatile IOException failure;
+    private boolean failureReported;
+
+    // Metrics
+    private long blocksQueued;
+    private long queueDepthSum;
+    private int maxQueueDepth;
+    private long stalls;
+    private long stallNanos;
+    private volatile long bytesWritten;
+    private volatile long writeNanos;
+
+    public AsyncFileSink(String fileName, Config config) throws IOException {
+        this(fileName, config, false);
+    }
+
+    /**
+     * @param compress If true, the file is gzip compressed. Should only be used for text files.
+     */
+    public AsyncFileSink(String fileName, Config config, boolean compress) throws IOException {
+        this.fileName = fileName;
+        this.config = config;
+        this.compress = compress;
+        channel = FileChannel.open(Paths.get(fileName), CREATE, TRUNCATE_EXISTING, WRITE);
+        // Room for every block plus the end marker
+        filled = new ArrayBlockingQueue<>(config.blocks + 1);
+        free = new ArrayBlockingQueue<>(config.blocks);
+        for (int i = 1; i < config.blocks; i++)
+            free.add(ByteBuffer.allocateDirect(config.blockSize));
+        current = ByteBuffer.allocateDirect(config.blockSize);
+        lastQueued = System.currentTimeMillis();
+
+        thread = new Thread(this::writeBlocks, "File writer " + Paths.get(fileName).getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!current.hasRemaining())
+            queueCurrent();
+        current.put((byte) b);
+        maybeFlush();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (!current.hasRemaining())
+                queueCurrent();
+            final int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+        maybeFlush();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        final int len = src.remaining();
+        while (src.hasRemaining()) {
+            if (!current.hasRemaining())
+                queueCurrent();
+            if (src.remaining() <= current.remaining()) {
+                current.put(src);
+            } else {
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + current.remaining());
+                current.put(part);
+                src.position(part.position());
+            }
+        }
+        maybeFlush();
+        return len;
+    }
+
+    /** Queues buffered data for writing. Doesn't wait for it to be written. */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (current.position() > 0)
+            queueCurrent();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /** Writes all buffered data, waits for the I/O thread to finish, then closes the file. */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (current.position() > 0)
+                queueCurrent();
+            filled.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+        if (stalls > 0)
+            System.out.println(this + " waited for writes " + stalls + " times: " + getMetrics());
+        checkFailure();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** Returns the number of times that writing had to wait for a free block. */
+    public long getStallCount() {
+        return stalls;
+    }
+
+    /** Returns the total time (milliseconds) spent waiting for free blocks. */
+    public double getStallTime() {
+        return stallNanos / 1e6;
+    }
+
+    /** Returns the maximum number of blocks waiting to be written. */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /** Returns the mean number of blocks waiting to be written when a block is queued. */
+    public double getMeanQueueDepth() {
+        return blocksQueued == 0 ? 0 : queueDepthSum / (double) blocksQueued;
+    }
+
+    /** Returns a description of the queue and write performance. */
+    public String getMetrics() {
+        return String.format("%d bytes written in %.1f ms, %d blocks queued, mean queue depth %.2f, max %d, %d stalls totalling %.1f ms",
+                bytesWritten, writeNanos / 1e6, blocksQueued, getMeanQueueDepth(), maxQueueDepth, stalls, getStallTime());
+    }
+
+    @Override
+    public String toString() {
+        return "Asynchronous " + (compress ? "compressed " : "") + "file " + fileName + " (" + config + ")";
+    }
+
+    // =================================================================
+    // Private methods
+
+    /** Body of the I/O thread. */
+    private void writeBlocks() {
+        BlockCompressor compressor = null;
+        try {
+            if (compress)
+                compressor = new BlockCompressor();
+        } catch (IOException e) {
+            failure = e;
+        }
+        try {
+            while (true) {
+                ByteBuffer block = filled.take();
+                final boolean end = block == END;
+                if (!end)
+                    block.flip();
+                // After a failure, keep taking blocks so that the writing thread doesn't wait forever
+                if (failure == null) {
+                    try {
+                        final long start = System.nanoTime();
+                        if (compressor != null) {
+                            compressor.write(block, end);
+                        } else {
+                            while (block.hasRemaining())
+                                channel.write(block);
+                        }
+                        bytesWritten = channel.position();
+                        writeNanos += System.nanoTime() - start;
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                if (end)
+                    break;
+                block.clear();
+                free.put(block);
+            }
+        } catch (InterruptedException e) {
+            failure = new IOException("Interrupted while writing " + fileName, e);
+        }
+        if (compressor != null)
+            compressor.release();
+    }
+
+    /** Gzip compresses blocks on the I/O thread. */
+    private class BlockCompressor {
+        private final GZIPOutputStream out;
+        // Uncompressed data: the incomplete last line of the previous block, followed by the current block
+        private byte[] pending = new byte[2 * config.blockSize];
+        private int pendingLength;
+
+        BlockCompressor() throws IOException {
+            // Sync flush so that flushing writes all data compressed so far.
+            // Fastest compression, so the I/O thread keeps up with output
+            out = new GZIPOutputStream(Channels.newOutputStream(channel), 64 * 1024, true) {
+                {
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            };
+        }
+
+        /** Compresses a block. If {@code end} is true, all remaining data is written and compression is finished. */
+        void write(ByteBuffer block, boolean end) throws IOException {
+            final int len = block.remaining();
+            if (pending.length < pendingLength + len)
+                pending = Arrays.copyOf(pending, Math.max(pendingLength + len, 2 * pending.length));
+            block.get(pending, pendingLength, len);
+            pendingLength += len;
+
+            if (end) {
+                out.write(pending, 0, pendingLength);
+                out.finish();
+                out.flush();
+            } else {
+                // Compress and flush complete lines, keep the rest for the next block
+                int lineEnd = pendingLength;
+                while (lineEnd > 0 && pending[lineEnd - 1] != '\n')
+                    lineEnd--;
+                if (lineEnd > 0) {
+                    out.write(pending, 0, lineEnd);
+                    out.flush();
+                    pendingLength -= lineEnd;
+                    System.arraycopy(pending, lineEnd, pending, 0, pendingLength);
+                }
+            }
+        }
+
+        /** Releases the compressor. Also closes the channel. */
+        void release() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Ignore, any data has already been written
+            }
+        }
+    }
+
+    /** Queues the current block for writing and gets a free block, waiting if necessary. */
+    private void queueCurrent() throws IOException {
+        checkFailure();
+        final int depth = filled.size();
+        queueDepthSum += depth;
+        maxQueueDepth = Math.max(maxQueueDepth, depth + 1);
+        blocksQueued++;
+        // Never blocks, the queue has room for every block
+        filled.add(current);
+        lastQueued = System.currentTimeMillis();
+
+        current = free.poll();
+        if (current == null) {
+            final long start = System.nanoTime();
+            try {
+                current = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to write " + fileName, e);
+            }
+            stalls++;
+            stallNanos += System.nanoTime() - start;
+        }
+    }
+
+    private void maybeFlush() throws IOException {
+        if (config.flushInterval > 0 && current.position() > 0 &&
+                System.currentTimeMillis() - lastQueued >= config.flushInterval)
+            queueCurrent();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+        checkFailure();
+    }
+
+    /** Throws the I/O thread's exception, but only once. */
+    private void checkFailure() throws IOException {
+        if (failure != null && !failureReported) {
+            failureReported = true;
+            throw new IOException("Error writing " + fileName, failure);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.jim.tracking;
+
+import com.jim.Params;
+import org.opencv.core.Mat;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a {@link MotionDetector.SnapshotFilter} on its own thread, so that slow output
+ * (e.g. video encoding, file I/O or display) doesn't delay processing of the next frame.
+ *
+ * Each frame is captured as a {@link FrameSnapshot} and queued. When the queue is full, the frame
+ * is either dropped or the tracking thread waits for space, depending on the {@link Policy}. Frames are
+ * never dropped for filters which need every frame (see {@link MotionDetector.SnapshotFilter#canDropFrames()}).
+ * If the wrapped filter throws an exception, it is rethrown on the tracking thread when the next frame is handled.
+ */
+public class AsyncFilter implements MotionDetector.Filter {
+    /** What to do with a frame when the queue is full. */
+    public enum Policy {
+        /** Discard the frame. Only used for display and video, not for writing results. */
+        DROP,
+        /** Wait until there is space in the queue. */
+        BLOCK
+    }
+
+    private final MotionDetector.SnapshotFilter filter;
+    private final Policy policy;
+    private final int queueSize;
+    private final BlockingQueue<Runnable> queue;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile Throwable failure;
+    private boolean failureReported;
+
+    /**
+     * @param filter Filter to run asynchronously.
+     * @param policy What to do when the queue is full.
+     * @param queueSize Maximum number of frames waiting to be handled.
+     */
+    public AsyncFilter(MotionDetector.SnapshotFilter filter, Policy policy, int queueSize) {
+        if (queueSize < 1)
+            throw new IllegalArgumentException("Queue size must be > 0, found " + queueSize);
+        if (policy == Policy.DROP && !filter.canDropFrames())
+            throw new IllegalArgumentException(filter.getClass().getSimpleName() + " can't drop frames");
+        this.filter = filter;
+        this.policy = policy;
+        this.queueSize = queueSize;
+        queue = new ArrayBlockingQueue<>(queueSize);
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, queue,
+                r -> {
+                    Thread thread = new Thread(r, "Async " + filter.getClass().getSimpleName());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (r, e) -> onQueueFull((Task) r));
+    }
+
+    /** Returns {@code filter} wrapped in an AsyncFilter if asynchronous output is configured and the filter supports it,
+     * otherwise returns {@code filter}. Filters which can't drop frames always block when the queue is full. */
+    public static MotionDetector.Filter wrap(MotionDetector.Filter filter, Params.TrackerParams params) {
+        if (params.asyncOutputPolicy != null && filter instanceof MotionDetector.SnapshotFilter) {
+            final MotionDetector.SnapshotFilter snapshotFilter = (MotionDetector.SnapshotFilter) filter;
+            final Policy policy = snapshotFilter.canDropFrames() ? params.asyncOutputPolicy : Policy.BLOCK;
+            return new AsyncFilter(snapshotFilter, policy, params.asyncOutputQueueSize);
+        }
+        return filter;
+    }
+
+    /** Returns the number of frames which were discarded because the queue was full. */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public void onCameraOpened(VideoPlayer camera) {
+        filter.onCameraOpened(camera);
+    }
+
+    @Override
+    public void handle(DetectionBatch detections, List<TrackWithEllipse> tracks, Mat greyFrame, Mat feedbackImage, Params opts, VideoPlayer camera) {
+        checkFailure();
+        FrameSnapshot frame = FrameSnapshot.capture(detections, tracks, filter.needsFeedbackImage() ? feedbackImage : null,
+                opts, camera);
+        executor.execute(new Task(frame));
+    }
+
+    @Override
+    public void onDone(VideoPlayer camera) {
+        // Wait for queued frames to be handled
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Keep waiting
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dropped.get() > 0)
+            System.out.println(filter.getClass().getSimpleName() + ": dropped " + dropped.get() + " frames because the output queue was full");
+        filter.onDone(camera);
+        checkFailure();
+    }
+
+    @Override
+    public String toString() {
+        return filter + " (asynchronous, " + policy.toString().toLowerCase() + " when " + queueSize + " frames are queued)";
+    }
+
+    // =================================================================
+    // Private methods
+
+    private class Task implements Runnable {
+        final FrameSnapshot frame;
+
+        Task(FrameSnapshot frame) {
+            this.frame = frame;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // Don't keep going after a failure
+                if (failure == null)
+                    filter.handle(frame);
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    private void onQueueFull(Task task) {
+        if (policy == Policy.BLOCK && !executor.isShutdown()) {
+            try {
+                queue.put(task);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        dropped.incrementAndGet();
+        task.frame.release();
+    }
+
+    /** Throws the wrapped filter's exception, but only once. */
+    private void checkFailure() {
+        if (failure != null && !failureReported) {
+            failureReported = true;
+            throw new RuntimeException("Asynchronous filter " + filter.getClass().getSimpleName() + " failed", failure);
+        }
+    }
+}
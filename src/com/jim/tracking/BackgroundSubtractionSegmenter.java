@@ -7,11 +7,14 @@ import org.opencv.imgproc.Imgproc;
 
 import static org.opencv.imgproc.Imgproc.THRESH_BINARY;
 import static org.opencv.imgproc.Imgproc.THRESH_BINARY_INV;
-import static org.opencv.imgproc.Imgproc.THRESH_OTSU;
 
 /** Detects foreground using background subtraction. */
 public class BackgroundSubtractionSegmenter implements ForegroundSegmenter {
     private Mat foregroundFrame;
+    // Statistics of the difference frame
+    private FrameStatistics stats;
+    private int framesSinceOtsu = 0;
+    private double otsuValue;
 
     @Override
     public Mat segment(int frameIndex, Mat greyFrame, Mat colourFrame, Params params) {
@@ -33,18 +36,34 @@ public class BackgroundSubtractionSegmenter implements ForegroundSegmenter {
                     Imgproc.threshold(foregroundFrame, foregroundFrame, params.trParams.threshold, 255, thresholdType);
                     break;
                 case ADAPTIVE:
-                    Imgproc.adaptiveThreshold(foregroundFrame, foregroundFrame, 255,
-                            Imgproc.ADAPTIVE_THRESH_MEAN_C,
-                            thresholdType, params.trParams.thresholdBlockSize, params.trParams.threshholdC);
+                    stats(params).adaptiveThreshold(foregroundFrame, params.trParams.thresholdBlockSize,
+                            params.trParams.threshholdC, params.trParams.thresholdInvert);
                     break;
                 case OTSU:
-                    double value = Imgproc.threshold(foregroundFrame, foregroundFrame, 0, 255, thresholdType + THRESH_OTSU);
-                    if (params.grParams.verbose)
-                        System.out.println("Otsu thresholding value = " + value);
+                    // Only recalculate the threshold every otsuInterval frames
+                    if (framesSinceOtsu == 0 || framesSinceOtsu >= params.trParams.otsuInterval) {
+                        otsuValue = stats(params).otsuThreshold();
+                        framesSinceOtsu = 0;
+                        if (params.grParams.verbose)
+                            System.out.println("Otsu thresholding value = " + otsuValue);
+                    }
+                    framesSinceOtsu++;
+                    Imgproc.threshold(foregroundFrame, foregroundFrame, otsuValue, 255, thresholdType);
                     break;
             }
         }
 
         return foregroundFrame;
     }
+
+    // =================================================================
+    // Private methods
+
+    /** Returns statistics of the current difference frame. */
+    private FrameStatistics stats(Params params) {
+        if (stats == null || stats.getSubsample() != params.trParams.statisticsSubsample)
+            stats = new FrameStatistics(params.trParams.statisticsSubsample);
+        stats.update(foregroundFrame);
+        return stats;
+    }
 }
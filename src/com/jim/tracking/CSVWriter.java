@@ -3,6 +3,7 @@ package com.jim.tracking;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.charset.Charset;
 
 /**
  * Created by jim_m on 13-May-17.
@@ -10,8 +11,20 @@ import java.io.Writer;
 class CSVWriter {
     private static final char QUOTE = '"';
     private static final char LINE_SEP = '\n';
+    /** Maximum number of decimal places for fixed precision output. */
+    static final int MAX_DECIMALS = 9;
+    private static final long[] POW10 = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000};
+    // Doubles which can't be scaled to an exact long are written in full
+    private static final double MAX_FIXED = 1e15;
     private transient Writer writer;
     private String commentPrefix = "# ";
+    // Number of decimal places for doubles in rows, or -1 to use Double.toString format
+    private int decimals = -1;
+    // Row buffers, reused to avoid allocating memory for every row
+    private final StringBuilder row = new StringBuilder(128);
+    private char[] rowChars = new char[128];
+    // Number of bytes written, assuming the writer encodes with the default charset
+    private long position;
 
     CSVWriter() {
     }
@@ -24,12 +37,27 @@ class CSVWriter {
         this.commentPrefix = commentPrefix;
     }
 
+    /** Sets the number of decimal places for doubles written by {@link #writeRow}.
+     * -1 (the default) writes doubles in the same format as {@link Double#toString(double)}. */
+    public void setDecimals(int decimals) {
+        if (decimals < -1 || decimals > MAX_DECIMALS)
+            throw new IllegalArgumentException("Decimals must be between -1 and " + MAX_DECIMALS + ", found " + decimals);
+        this.decimals = decimals;
+    }
+
     public void writeComment(String comment) throws IOException {
         for (String line : comment.split("\n")) {
             writer.append(commentPrefix).append(line).append(LINE_SEP);
+            // Comments may contain non-ASCII characters, e.g. in file names
+            position += (commentPrefix + line).getBytes(Charset.defaultCharset()).length + 1;
         }
     }
 
+    /** Returns the number of bytes written so far, i.e. the file offset of the next row. */
+    long getPosition() {
+        return position;
+    }
+
     void writeHeaders(String[] headers) throws IOException {
         writeValues(headers);
     }
@@ -44,16 +72,74 @@ class CSVWriter {
                 sep = ",";
             }
             buf.append(LINE_SEP);
-            writer.write(buf.toString());
+            String line = buf.toString();
+            writer.write(line);
+            position += line.getBytes(Charset.defaultCharset()).length;
+        }
+    }
+
+    /** Writes a row of track values. Equivalent to {@link #writeValues} with the values boxed,
+     * but doesn't allocate any memory. */
+    void writeRow(int frame, double time, long id, double x, double y, boolean changed) throws IOException {
+        if (writer != null) {
+            row.setLength(0);
+            row.append(frame).append(',');
+            appendDouble(time);
+            row.append(',').append(id).append(',');
+            appendDouble(x);
+            row.append(',');
+            appendDouble(y);
+            row.append(',').append(changed).append(LINE_SEP);
+
+            final int len = row.length();
+            if (rowChars.length < len)
+                rowChars = new char[Math.max(len, 2 * rowChars.length)];
+            row.getChars(0, len, rowChars, 0);
+            writer.write(rowChars, 0, len);
+            // Rows only contain ASCII characters
+            position += len;
         }
     }
 
+    void flush() throws IOException {
+        if (writer != null)
+            writer.flush();
+    }
+
     void close() throws IOException {
         if (writer != null)
             writer.close();
         writer = null;
     }
 
+    /** Appends a double to the row buffer, either with {@code decimals} decimal places or in Double.toString format. */
+    private void appendDouble(double value) {
+        // StringBuilder.append(double) formats like Double.toString without creating a String
+        if (decimals < 0 || Double.isNaN(value) || Math.abs(value) >= MAX_FIXED) {
+            row.append(value);
+            return;
+        }
+        final long scale = POW10[decimals];
+        final double scaled = Math.abs(value) * scale;
+        if (scaled >= MAX_FIXED) {
+            row.append(value);
+            return;
+        }
+        final long n = Math.round(scaled);
+        // Don't write negative zero
+        if (value < 0 && n != 0)
+            row.append('-');
+        row.append(n / scale);
+        if (decimals > 0) {
+            row.append('.');
+            final long fraction = n % scale;
+            // Leading zeros of the fraction
+            for (long p = scale / 10; p > 1 && fraction < p; p /= 10)
+                row.append('0');
+            row.append(fraction);
+        }
+    }
+
     private void appendValue(StringBuilder buf, Object value) {
         boolean quote = value instanceof String;
         if (quote)
@@ -15,7 +15,7 @@ import static org.opencv.imgproc.Imgproc.FONT_HERSHEY_SIMPLEX;
  */
 public class DebugOverlay implements MotionDetector.Filter {
     @Override
-    public void handle(List<MotionDetector.DetectedObject> detectedObjects, List<TrackWithEllipse> tracks, Mat greyFrame, Mat feedbackImage, Params opts, VideoPlayer camera) {
+    public void handle(DetectionBatch detections, List<TrackWithEllipse> tracks, Mat greyFrame, Mat feedbackImage, Params opts, VideoPlayer camera) {
         int curr = (int) (100 * camera.getFrameIndex() / camera.getNumOfFrames());
         Imgproc.putText(feedbackImage, (curr + "%"), new Point(10, 120), FONT_HERSHEY_SIMPLEX,
                 .6, RGB(200, 0, 0));
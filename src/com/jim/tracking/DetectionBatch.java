@@ -0,0 +1,293 @@
+package com.jim.tracking;
+
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Point;
+import org.opencv.core.RotatedRect;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The objects detected in a single frame, stored as parallel arrays of primitives.
+ *
+ * A batch is intended to be reused for every frame, so once its arrays have grown
+ * to accommodate the largest number of detections, detecting and tracking objects
+ * doesn't allocate any memory for them.
+ * Detected objects which have an outline (see {@link MotionDetector.DetectedObject}) are retained
+ * so that lazily calculated geometry such as the ellipse remains available.
+ *
+ * {@link #asList()} and {@link #addAll(List)} adapt to and from lists of {@link MotionDetector.DetectedObject}.
+ */
+public class DetectionBatch {
+    /** Set if the object has been matched to a feature key point. */
+    public static final int FLAG_KEY_POINT = 1;
+    /** Set if the ellipse values are known. */
+    public static final int FLAG_ELLIPSE = 2;
+
+    private int size;
+    private double[] x;
+    private double[] y;
+    private double[] area;
+    private int[] flags;
+    private double[] ellipseWidth;
+    private double[] ellipseHeight;
+    private double[] ellipseAngle;
+    private double[] keyPointDistance;
+    private KeyPoint[] keyPoints;
+    private MotionDetector.DetectedObject[] objects;
+    private final ListView listView = new ListView();
+
+    public DetectionBatch() {
+        this(16);
+    }
+
+    public DetectionBatch(int capacity) {
+        allocate(Math.max(1, capacity));
+    }
+
+    /** Returns a new batch containing the specified objects. */
+    public static DetectionBatch of(List<MotionDetector.DetectedObject> objects) {
+        DetectionBatch batch = new DetectionBatch(objects.size());
+        batch.addAll(objects);
+        return batch;
+    }
+
+    /** Returns a copy of this batch which doesn't share any objects with it.
+     * Geometry which hasn't already been calculated (e.g. the ellipse) is not available from the copy. */
+    public DetectionBatch copy() {
+        DetectionBatch copy = new DetectionBatch(size);
+        copy.size = size;
+        System.arraycopy(x, 0, copy.x, 0, size);
+        System.arraycopy(y, 0, copy.y, 0, size);
+        System.arraycopy(area, 0, copy.area, 0, size);
+        System.arraycopy(flags, 0, copy.flags, 0, size);
+        System.arraycopy(ellipseWidth, 0, copy.ellipseWidth, 0, size);
+        System.arraycopy(ellipseHeight, 0, copy.ellipseHeight, 0, size);
+        System.arraycopy(ellipseAngle, 0, copy.ellipseAngle, 0, size);
+        System.arraycopy(keyPointDistance, 0, copy.keyPointDistance, 0, size);
+        System.arraycopy(keyPoints, 0, copy.keyPoints, 0, size);
+        return copy;
+    }
+
+    /** Removes all detections. */
+    public void clear() {
+        // Don't hold on to objects (and their contours) from previous frames
+        Arrays.fill(objects, 0, size, null);
+        Arrays.fill(keyPoints, 0, size, null);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Adds a detection which is only a point.
+     * @return Index of the new detection. */
+    public int add(double x, double y, double area) {
+        ensureCapacity(size + 1);
+        final int i = size++;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.area[i] = area;
+        flags[i] = 0;
+        objects[i] = null;
+        keyPoints[i] = null;
+        return i;
+    }
+
+    /** Adds a detected object.
+     * @return Index of the new detection. */
+    public int add(MotionDetector.DetectedObject object, double area) {
+        final int i = add(object.centroid.x, object.centroid.y, area);
+        objects[i] = object;
+        if (object.keyPoint != null)
+            setKeyPoint(i, object.keyPoint, object.keyPointDistance);
+        return i;
+    }
+
+    /** Adds all of the objects in the list. */
+    public void addAll(List<MotionDetector.DetectedObject> objects) {
+        ensureCapacity(size + objects.size());
+        for (MotionDetector.DetectedObject object : objects)
+            add(object, 0);
+    }
+
+    public double x(int i) {
+        return x[i];
+    }
+
+    public double y(int i) {
+        return y[i];
+    }
+
+    /** Returns the area of detection {@code i}, or 0 if unknown. */
+    public double area(int i) {
+        return area[i];
+    }
+
+    public int flags(int i) {
+        return flags[i];
+    }
+
+    public boolean hasFlag(int i, int flag) {
+        return (flags[i] & flag) != 0;
+    }
+
+    /** Returns the distance between detections {@code i} and {@code j}. */
+    public double distance(int i, int j) {
+        return Math.hypot(x[i] - x[j], y[i] - y[j]);
+    }
+
+    /** Returns true if an ellipse is, or can be, fitted to detection {@code i}.
+     * If the ellipse hasn't been fitted yet, it is fitted now. */
+    public boolean hasEllipse(int i) {
+        if ((flags[i] & FLAG_ELLIPSE) == 0 && objects[i] != null) {
+            RotatedRect ell = objects[i].getEllipse();
+            if (ell != null) {
+                ellipseWidth[i] = ell.size.width;
+                ellipseHeight[i] = ell.size.height;
+                ellipseAngle[i] = ell.angle;
+                flags[i] |= FLAG_ELLIPSE;
+            }
+        }
+        return (flags[i] & FLAG_ELLIPSE) != 0;
+    }
+
+    /** Returns the width of the ellipse fitted to detection {@code i}. Only valid if {@link #hasEllipse(int)} is true. */
+    public double ellipseWidth(int i) {
+        return ellipseWidth[i];
+    }
+
+    /** Returns the height of the ellipse fitted to detection {@code i}. Only valid if {@link #hasEllipse(int)} is true. */
+    public double ellipseHeight(int i) {
+        return ellipseHeight[i];
+    }
+
+    /** Returns the angle (degrees) of the ellipse fitted to detection {@code i}. Only valid if {@link #hasEllipse(int)} is true. */
+    public double ellipseAngle(int i) {
+        return ellipseAngle[i];
+    }
+
+    public void setKeyPoint(int i, KeyPoint keyPoint, double distance) {
+        keyPoints[i] = keyPoint;
+        keyPointDistance[i] = distance;
+        flags[i] |= FLAG_KEY_POINT;
+        if (objects[i] != null) {
+            objects[i].keyPoint = keyPoint;
+            objects[i].keyPointDistance = distance;
+        }
+    }
+
+    /** Returns the key point matched to detection {@code i}, or null. */
+    public KeyPoint keyPoint(int i) {
+        return keyPoints[i];
+    }
+
+    public double keyPointDistance(int i) {
+        return keyPointDistance[i];
+    }
+
+    /** Returns the detected object at index {@code i}. If the detection was only added as a point, an object is created. */
+    public MotionDetector.DetectedObject object(int i) {
+        if (objects[i] == null) {
+            MotionDetector.DetectedObject object = new MotionDetector.DetectedObject(new Point(x[i], y[i]));
+            object.keyPoint = keyPoints[i];
+            object.keyPointDistance = keyPointDistance[i];
+            objects[i] = object;
+        }
+        return objects[i];
+    }
+
+    /** Copies detection {@code from} over detection {@code to}. Used to compact the batch in place. */
+    public void move(int from, int to) {
+        if (from == to)
+            return;
+        x[to] = x[from];
+        y[to] = y[from];
+        area[to] = area[from];
+        flags[to] = flags[from];
+        ellipseWidth[to] = ellipseWidth[from];
+        ellipseHeight[to] = ellipseHeight[from];
+        ellipseAngle[to] = ellipseAngle[from];
+        keyPointDistance[to] = keyPointDistance[from];
+        keyPoints[to] = keyPoints[from];
+        objects[to] = objects[from];
+    }
+
+    /** Discards all detections from index {@code newSize} onwards. */
+    public void truncate(int newSize) {
+        if (newSize < size) {
+            Arrays.fill(objects, newSize, size, null);
+            Arrays.fill(keyPoints, newSize, size, null);
+            size = newSize;
+        }
+    }
+
+    /** Returns a read-only view of this batch as a list of objects.
+     * Objects are created for detections which were added as points. */
+    public List<MotionDetector.DetectedObject> asList() {
+        return listView;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                buf.append(", ");
+            buf.append('(').append(x[i]).append(", ").append(y[i]).append(')');
+        }
+        return buf.append(']').toString();
+    }
+
+    // =================================================================
+    // Private methods
+
+    private class ListView extends AbstractList<MotionDetector.DetectedObject> {
+        @Override
+        public MotionDetector.DetectedObject get(int index) {
+            if (index >= size)
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+            return object(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    private void allocate(int capacity) {
+        x = new double[capacity];
+        y = new double[capacity];
+        area = new double[capacity];
+        flags = new int[capacity];
+        ellipseWidth = new double[capacity];
+        ellipseHeight = new double[capacity];
+        ellipseAngle = new double[capacity];
+        keyPointDistance = new double[capacity];
+        keyPoints = new KeyPoint[capacity];
+        objects = new MotionDetector.DetectedObject[capacity];
+    }
+
+    private void ensureCapacity(int n) {
+        if (x.length < n) {
+            final int capacity = Math.max(n, 2 * x.length);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            area = Arrays.copyOf(area, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            ellipseWidth = Arrays.copyOf(ellipseWidth, capacity);
+            ellipseHeight = Arrays.copyOf(ellipseHeight, capacity);
+            ellipseAngle = Arrays.copyOf(ellipseAngle, capacity);
+            keyPointDistance = Arrays.copyOf(keyPointDistance, capacity);
+            keyPoints = Arrays.copyOf(keyPoints, capacity);
+            objects = Arrays.copyOf(objects, capacity);
+        }
+    }
+}
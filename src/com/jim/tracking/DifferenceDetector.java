@@ -4,13 +4,9 @@ import com.jim.Params;
 import com.jim.util.Util;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.RotatedRect;
-import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.imgproc.Moments;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -21,35 +17,39 @@ import java.util.List;
 public class DifferenceDetector implements MotionDetector.Detector {
     // Maximum number of objects to detect in 1 frame
     private static final int MAX_CONTOURS = 1000;
+    // Compiled dilation/erosion steps
+    private MorphologyPlan morphology;
 
-    /** Returns centroids of detected contours.
+    /** Detects contours, adding those which pass the size checks to <code>result</code>.
      * Various feedback graphics are optionally (based on <code>opts</code>) drawn to <code>feedbackImage</code>.
-     * @return List of points of centroids of contours which have area greater than <code>minArea</code>.
      * */
     @Override
-    public ArrayList<MotionDetector.DetectedObject> detect(int frameIndex, Mat greyFrame, Mat colourFrame, Params params, Mat feedbackImage) {
-
-        Mat foregroundFrame = params.trParams.foregroundSegmenter.segment(frameIndex, greyFrame, colourFrame, params);
+    public void detect(int frameIndex, Mat greyFrame, Mat colourFrame, Params params, Mat feedbackImage, DetectionBatch result) {
+        result.clear();
+
+        // Don't let the segmenter learn from frames while a global change continues, but start again if it lasts
+        final GlobalChangeGuard guard = params.trParams.globalChangeGuard;
+        final ForegroundSegmenter segmenter = params.trParams.foregroundSegmenter;
+        if (guard != null && guard.shouldRelearn())
+            segmenter.reset();
+        Mat foregroundFrame = guard == null || guard.shouldLearn() ?
+                segmenter.segment(frameIndex, greyFrame, colourFrame, params) :
+                segmenter.classify(frameIndex, greyFrame, colourFrame, params);
 
         // Apply expansion/contraction to foreground areas
-        for (double v : params.trParams.dilationErosionSize) {
-            if (v > 0) {
-                // Expand regions
-                Mat kernel = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(v, v));
-                Imgproc.dilate(foregroundFrame, foregroundFrame, kernel, new Point(-1, -1), 1);
-            } else if (v < 0) {
-                // Contract regions
-                Mat kernel = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(-v, -v));
-                Imgproc.erode(foregroundFrame, foregroundFrame, kernel, new Point(-1, -1), 1);
-            }
-        }
+        morphology = MorphologyPlan.update(morphology, params.trParams.dilationErosionSize, params.trParams.dilationErosionShape);
+        morphology.apply(foregroundFrame);
 
         params.grParams.thresholdFeedback.maybeShowFrame(foregroundFrame);
 
-        return detect(foregroundFrame, params, feedbackImage);
+        // Ignore frames where most of the frame is foreground, otherwise we get a flood of detections
+        if (guard != null && guard.checkForeground(foregroundFrame))
+            return;
+
+        detect(foregroundFrame, params, feedbackImage, result);
     }
 
-    private ArrayList<MotionDetector.DetectedObject> detect(Mat image, Params params, Mat feedbackImage) {
+    private void detect(Mat image, Params params, Mat feedbackImage, DetectionBatch result) {
 
         // Construct contours around thresholded differences
         Mat hierarchy = new Mat();
@@ -62,8 +62,6 @@ public class DifferenceDetector implements MotionDetector.Detector {
         hierarchy.release();
         imageCopy.release();
 
-        ArrayList<MotionDetector.DetectedObject> result = new ArrayList<>();
-
         // For each contour...
         final int numContours = contours.size();
         for (int idx = 0; idx < numContours; idx++) {
@@ -74,14 +72,14 @@ public class DifferenceDetector implements MotionDetector.Detector {
             boolean tooBig = contourArea > params.trParams.maxContourArea;
             boolean tooShort = false;
             boolean tooLong = false;
-            MatOfPoint2f contour2f = null;
-            double contourLength = 0;
+            MotionDetector.DetectedObject trackedObject = null;
             if (!tooSmall && !tooBig) {
-                contour2f = new MatOfPoint2f();
-                contour2f.fromList(contour.toList());
-                contourLength = Imgproc.arcLength(contour2f, true);
-                tooShort = contourLength < params.trParams.minContourLength;
-                tooLong = contourLength > params.trParams.maxContourLength;
+                trackedObject = new MotionDetector.DetectedObject(contour);
+                // Only calculate the perimeter if there is a limit on it
+                if (params.trParams.minContourLength > 0 || params.trParams.maxContourLength < Double.MAX_VALUE) {
+                    tooShort = trackedObject.getPerimeter() < params.trParams.minContourLength;
+                    tooLong = trackedObject.getPerimeter() > params.trParams.maxContourLength;
+                }
             }
             if (!tooSmall && !tooBig && !tooShort && !tooLong) {
                 // Don't even try to handle lots of detections
@@ -91,34 +89,23 @@ public class DifferenceDetector implements MotionDetector.Detector {
                     break;
                 }
 
-                // Calculate contour centroid
-                Moments mu = Imgproc.moments(contour);
-                Point centroid = new Point(mu.get_m10() / mu.get_m00(), mu.get_m01() / mu.get_m00());
-                // Create a new instance with the centroid
-                final MotionDetector.DetectedObject trackedObject = new MotionDetector.DetectedObject(centroid);
-
-                // Get ellipse (if there are enough points detected)
-                if (contour.total() >= 5) {
-                    final RotatedRect ell = Imgproc.fitEllipse(contour2f);
-                    // Check if ellipse is too big
-                    if (ell.size.width > params.trParams.maxLength || ell.size.height > params.trParams.maxLength)
-                        continue;
-                    trackedObject.ellipse = ell;
-                    if (params.grParams.showEllipse)
-                        Imgproc.ellipse(feedbackImage, trackedObject.ellipse, Util.RGB(0, 255, 0));
-                }
+                // Check if ellipse is too big
+                if (exceedsMaxLength(trackedObject, params.trParams.maxLength))
+                    continue;
+                if (params.grParams.showEllipse && trackedObject.getEllipse() != null)
+                    Imgproc.ellipse(feedbackImage, trackedObject.getEllipse(), Util.RGB(0, 255, 0));
 
-                result.add(trackedObject);
+                result.add(trackedObject, contourArea);
 
                 // Feedback
                 if (params.grParams.showContours)
                     Imgproc.drawContours(feedbackImage, contours, idx, Util.RGB(255, 0, 0));
                 if (params.grParams.showRectangle) {
-                    Rect br = Imgproc.boundingRect(contour);
+                    Rect br = trackedObject.getBoundingRect();
                     Imgproc.rectangle(feedbackImage, br.br(), br.tl(), Util.RGB(0, 255, 0), 1);
                 }
                 if (params.grParams.showCentroid)
-                    Imgproc.circle(feedbackImage, centroid, 5, Util.RGB(0, 0, 255));
+                    Imgproc.circle(feedbackImage, trackedObject.centroid, 5, Util.RGB(0, 0, 255));
 
             } else if (params.grParams.debug) {
                 if (contourArea > 0) {
@@ -126,11 +113,26 @@ public class DifferenceDetector implements MotionDetector.Detector {
                             tooSmall ? "small" :
                             tooShort ? "short" :
                             "long";
+                    double contourLength = trackedObject == null ? 0 : trackedObject.getPerimeter();
                     System.out.println("Skipping contour " + String.format("%03d", idx) + ", too " + exc + ", size " + contourArea + ", length " + contourLength);
                 }
             }
         }
 
-        return result;
+    }
+
+    /** Returns true if the width or height of the ellipse fitted to the object is greater than {@code maxLength}.
+     * Fitting an ellipse is relatively expensive, so objects whose minimum area rectangle is less than half
+     * of {@code maxLength} are accepted without fitting. */
+    private static boolean exceedsMaxLength(MotionDetector.DetectedObject object, double maxLength) {
+        if (object.getContour().total() < 5)
+            return false;
+        if (!object.hasEllipse()) {
+            RotatedRect rect = object.getMinAreaRect();
+            if (Math.max(rect.size.width, rect.size.height) * 2 <= maxLength)
+                return false;
+        }
+        RotatedRect ell = object.getEllipse();
+        return ell.size.width > maxLength || ell.size.height > maxLength;
     }
 }
@@ -0,0 +1,242 @@
+package com.jim.tracking;
+
+import com.jim.util.Util;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+import static org.opencv.core.CvType.CV_32F;
+import static org.opencv.core.CvType.CV_8U;
+import static org.opencv.imgproc.Imgproc.goodFeaturesToTrack;
+
+/**
+ * Maintains a spatially balanced set of features for optical flow tracking.
+ *
+ * The frame is divided into a grid of cells, each of which has a budget of features.
+ * New Shi-Tomasi corners are only searched for in cells which lie (at least partly) within
+ * the region of interest and currently have fewer features than their budget.
+ * Existing features (and their neighbourhoods) are masked out of the search, so they
+ * are never detected twice.
+ *
+ * Corners must be at least {@link #QUALITY_LEVEL} times as strong as the strongest corner in the whole frame
+ * (which is recalculated every {@link #REFERENCE_INTERVAL} frames), so cells without texture are left empty rather
+ * than being filled with noise. When a search of a cell finds nothing, the cell isn't searched again for a while,
+ * and the wait doubles (up to {@link #MAX_BACKOFF} frames) each time the search fails again.
+ */
+public class FeatureGrid {
+    private static final double QUALITY_LEVEL = 0.3;
+    private static final double MIN_DISTANCE = 5;
+    // Block and aperture size used to calculate corner strength, as used by goodFeaturesToTrack
+    private static final int BLOCK_SIZE = 3;
+    private static final int APERTURE_SIZE = 3;
+    /** Number of frames between recalculations of the strongest corner in the frame. */
+    public static final int REFERENCE_INTERVAL = 25;
+    /** Maximum number of frames that a cell is skipped after unsuccessful searches. */
+    public static final int MAX_BACKOFF = 32;
+
+    private final int cols;
+    private final int rows;
+    private final int perCell;
+
+    private Size frameSize;
+    private Region region;
+    private Rect[] cells;
+    // True for cells which overlap the region of interest
+    private boolean[] active;
+    private final int[] counts;
+    // Number of frames to wait after the last unsuccessful search of each cell, and the frame to search it again
+    private final int[] backoff;
+    private final int[] retryAt;
+    private int frameCount;
+    // Minimum corner strength (minimum eigenvalue) of a new feature
+    private double minResponse;
+    // Region of interest, 255 inside, 0 outside
+    private Mat regionMask;
+    // Mask passed to corner detection, i.e. region mask with existing features removed
+    private Mat detectMask;
+    private Mat[] regionMaskCells;
+    private Mat[] detectMaskCells;
+    // Corner strength of each pixel
+    private Mat eigen;
+    private Mat[] eigenCells;
+    private final Point point = new Point();
+    private final MatOfPoint corners = new MatOfPoint();
+    private int[] cornerCoords = new int[0];
+
+    /**
+     * @param cols Number of grid columns.
+     * @param rows Number of grid rows.
+     * @param perCell Maximum number of features in each cell.
+     */
+    public FeatureGrid(int cols, int rows, int perCell) {
+        if (cols < 1 || rows < 1 || perCell < 1)
+            throw new IllegalArgumentException("Invalid feature grid " + cols + "x" + rows + ":" + perCell);
+        this.cols = cols;
+        this.rows = rows;
+        this.perCell = perCell;
+        counts = new int[cols * rows];
+        backoff = new int[cols * rows];
+        retryAt = new int[cols * rows];
+    }
+
+    /** Returns the maximum number of features which can be maintained. */
+    public int capacity() {
+        return cols * rows * perCell;
+    }
+
+    /** Adds new features to cells which are below budget.
+     *
+     * @param frame Grey frame to detect new features in.
+     * @param mask Region of interest in frame coordinates, may be null.
+     * @param coords Interleaved x, y coordinates of current features. New features are appended,
+     *               so the array must have room for {@link #capacity()} features.
+     * @param n Number of current features.
+     * @return Total number of features in {@code coords}.
+     */
+    public int replenish(Mat frame, Region mask, float[] coords, int n) {
+        prepare(frame.size(), mask);
+        if (frameCount++ % REFERENCE_INTERVAL == 0) {
+            // Find the strongest corner in the region of interest
+            Imgproc.cornerMinEigenVal(frame, eigen, BLOCK_SIZE, APERTURE_SIZE);
+            minResponse = QUALITY_LEVEL * Core.minMaxLoc(eigen, regionMask).maxVal;
+        }
+
+        // Count existing features in each cell
+        Arrays.fill(counts, 0);
+        boolean anyDeficit = false;
+        for (int i = 0; i < n; i++) {
+            int cell = cellOf(coords[2 * i], coords[2 * i + 1]);
+            if (cell >= 0)
+                counts[cell]++;
+        }
+        for (int c = 0; c < counts.length; c++) {
+            if (needsSearch(c)) {
+                anyDeficit = true;
+                // Start with the region of interest for this cell
+                regionMaskCells[c].copyTo(detectMaskCells[c]);
+            }
+        }
+        if (!anyDeficit)
+            return n;
+
+        // Exclude existing features
+        for (int i = 0; i < n; i++) {
+            point.x = coords[2 * i];
+            point.y = coords[2 * i + 1];
+            Imgproc.circle(detectMask, point, (int) MIN_DISTANCE, Util.BLACK, -1);
+        }
+
+        // Find new corners in cells which need them
+        for (int c = 0; c < counts.length; c++) {
+            if (!needsSearch(c))
+                continue;
+            final Rect r = cells[c];
+            Mat cellFrame = frame.submat(r);
+            // goodFeaturesToTrack's quality level is relative to the strongest corner in the cell,
+            // so convert the minimum strength to a quality level for this cell
+            Imgproc.cornerMinEigenVal(cellFrame, eigenCells[c], BLOCK_SIZE, APERTURE_SIZE);
+            final double cellMax = Core.minMaxLoc(eigenCells[c], detectMaskCells[c]).maxVal;
+            int found = 0;
+            if (cellMax > 0 && cellMax >= minResponse) {
+                goodFeaturesToTrack(cellFrame, corners, perCell - counts[c], Math.max(minResponse / cellMax, 1e-6),
+                        MIN_DISTANCE, detectMaskCells[c]);
+                found = (int) corners.total();
+            }
+            cellFrame.release();
+
+            if (found == 0) {
+                // Don't search this cell again for a while
+                backoff[c] = Math.min(MAX_BACKOFF, Math.max(2, 2 * backoff[c]));
+                retryAt[c] = frameCount + backoff[c];
+                continue;
+            }
+            backoff[c] = 0;
+            if (cornerCoords.length < 2 * found)
+                cornerCoords = new int[2 * perCell];
+            corners.get(0, 0, cornerCoords);
+            for (int k = 0; k < found; k++) {
+                coords[2 * n] = cornerCoords[2 * k] + r.x;
+                coords[2 * n + 1] = cornerCoords[2 * k + 1] + r.y;
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return cols + "x" + rows + " grid, " + perCell + " features per cell";
+    }
+
+    // =================================================================
+    // Private methods
+
+    /** Returns true if cell {@code c} is below budget and isn't waiting after an unsuccessful search. */
+    private boolean needsSearch(int c) {
+        return active[c] && counts[c] < perCell && frameCount >= retryAt[c];
+    }
+
+    /** (Re)builds the grid and masks if the frame size or region of interest has changed. */
+    private void prepare(Size size, Region mask) {
+        if (size.equals(frameSize) && mask == region)
+            return;
+        frameSize = size;
+        region = mask;
+        final int width = (int) size.width;
+        final int height = (int) size.height;
+
+        if (regionMask != null) {
+            regionMask.release();
+            detectMask.release();
+            eigen.release();
+        }
+        if (mask == null) {
+            regionMask = new Mat(height, width, CV_8U, Util.WHITE);
+        } else {
+            regionMask = Mat.zeros(height, width, CV_8U);
+            mask.draw(regionMask, null, Util.WHITE);
+            if (!mask.isIncludeRegion())
+                Core.bitwise_not(regionMask, regionMask);
+        }
+        detectMask = Mat.zeros(height, width, CV_8U);
+        eigen = new Mat(height, width, CV_32F);
+        // Recalculate the strongest corner and search every cell again
+        frameCount = 0;
+        Arrays.fill(backoff, 0);
+        Arrays.fill(retryAt, 0);
+
+        cells = new Rect[cols * rows];
+        active = new boolean[cols * rows];
+        regionMaskCells = new Mat[cols * rows];
+        detectMaskCells = new Mat[cols * rows];
+        eigenCells = new Mat[cols * rows];
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                int x0 = col * width / cols;
+                int y0 = row * height / rows;
+                int x1 = (col + 1) * width / cols;
+                int y1 = (row + 1) * height / rows;
+                int c = row * cols + col;
+                cells[c] = new Rect(x0, y0, x1 - x0, y1 - y0);
+                regionMaskCells[c] = regionMask.submat(cells[c]);
+                detectMaskCells[c] = detectMask.submat(cells[c]);
+                eigenCells[c] = eigen.submat(cells[c]);
+                active[c] = !cells[c].empty() && Core.countNonZero(regionMaskCells[c]) > 0;
+            }
+        }
+    }
+
+    private int cellOf(float x, float y) {
+        int col = (int) (x * cols / frameSize.width);
+        int row = (int) (y * rows / frameSize.height);
+        if (col < 0 || col >= cols || row < 0 || row >= rows)
+            return -1;
+        return row * cols + col;
+    }
+}
@@ -22,7 +22,7 @@ public class FeedbackTracker implements MotionDetector.Filter {
     private Mat trackingTransform = null;
 
     @Override
-    public void handle(List<MotionDetector.DetectedObject> detectedObjects, List<TrackWithEllipse> tracks, Mat greyFrame, Mat feedbackImage, Params params, VideoPlayer camera) {
+    public void handle(DetectionBatch detections, List<TrackWithEllipse> tracks, Mat greyFrame, Mat feedbackImage, Params params, VideoPlayer camera) {
         Size dsize = params.srcParams.frameSize;
 
         // Pick the longest track so far
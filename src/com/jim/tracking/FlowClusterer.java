@@ -0,0 +1,243 @@
+package com.jim.tracking;
+
+import com.jim.util.Util;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Groups optical flow vectors into moving objects.
+ *
+ * Vectors which have (almost) not moved are discarded, then the remainder are clustered
+ * using DBSCAN, where two vectors are neighbours if their end points are within
+ * {@code radius} of each other and their directions differ by no more than {@code maxAngle}.
+ * Neighbours are found using a spatial hash with cell size {@code radius}, so only
+ * the 3x3 block of cells around a point needs to be searched.
+ * Each cluster becomes a single detected object.
+ */
+public class FlowClusterer {
+    private static final int NOISE = -1;
+    private static final int UNVISITED = -2;
+
+    private final double minDisplacement;
+    private final double radius;
+    private final int minPoints;
+    private final double maxAngle;
+    private final double cosMaxAngle;
+
+    // Working buffers, grown as required.
+    // Positions and unit direction vectors of moving points
+    private float[] px = new float[0];
+    private float[] py = new float[0];
+    private float[] dx = new float[0];
+    private float[] dy = new float[0];
+    private int[] label = new int[0];
+    private int[] queue = new int[0];
+    private int[] neighbours = new int[0];
+    // Spatial hash: cell keys, head of the point list in each cell, and next point in the same cell
+    private long[] cellKeys = new long[0];
+    private int[] cellHeads = new int[0];
+    private int[] nextInCell = new int[0];
+    private int hashSize;
+
+    /**
+     * @param minDisplacement Vectors shorter than this (pixels) are ignored.
+     * @param radius Maximum distance (pixels) between neighbouring points in a cluster.
+     * @param minPoints Minimum number of neighbours (including itself) for a point to be a cluster core point.
+     * @param maxAngle Maximum difference in flow direction (degrees) between neighbouring points.
+     */
+    public FlowClusterer(double minDisplacement, double radius, int minPoints, double maxAngle) {
+        if (radius <= 0)
+            throw new IllegalArgumentException("Flow cluster radius must be > 0, found " + radius);
+        this.minDisplacement = minDisplacement;
+        this.radius = radius;
+        this.minPoints = Math.max(1, minPoints);
+        this.maxAngle = maxAngle;
+        this.cosMaxAngle = Math.cos(Math.toRadians(maxAngle));
+    }
+
+    /** Clusters flow vectors, adding a detected object for each cluster to {@code result}.
+     *
+     * @param oldCoords Interleaved x, y coordinates of vector start points.
+     * @param newCoords Interleaved x, y coordinates of vector end points.
+     * @param n Number of vectors.
+     * @param result Detected objects are added to this batch.
+     * @param showEllipse If true, the fitted ellipse of each cluster is drawn on {@code feedbackImage}.
+     * @param feedbackImage Image to draw to.
+     */
+    public void cluster(float[] oldCoords, float[] newCoords, int n, DetectionBatch result,
+                        boolean showEllipse, Mat feedbackImage) {
+        int m = collectMovingPoints(oldCoords, newCoords, n);
+        if (m == 0)
+            return;
+        buildHash(m);
+
+        // DBSCAN
+        Arrays.fill(label, 0, m, UNVISITED);
+        int numClusters = 0;
+        for (int i = 0; i < m; i++) {
+            if (label[i] != UNVISITED)
+                continue;
+            int nn = findNeighbours(i);
+            if (nn < minPoints) {
+                label[i] = NOISE;
+                continue;
+            }
+            // Start a new cluster and expand it
+            int cluster = numClusters++;
+            label[i] = cluster;
+            int head = 0, tail = 0;
+            for (int k = 0; k < nn; k++)
+                tail = enqueue(neighbours[k], cluster, tail);
+            while (head < tail) {
+                int j = queue[head++];
+                int jn = findNeighbours(j);
+                // Only core points extend the cluster
+                if (jn >= minPoints) {
+                    for (int k = 0; k < jn; k++)
+                        tail = enqueue(neighbours[k], cluster, tail);
+                }
+            }
+        }
+
+        for (int c = 0; c < numClusters; c++)
+            result.add(clusterToObject(c, m, showEllipse, feedbackImage), 0);
+    }
+
+    @Override
+    public String toString() {
+        return "radius " + radius + ", min displacement " + minDisplacement +
+                ", min points " + minPoints + ", max angle " + maxAngle;
+    }
+
+    // =================================================================
+    // Private methods
+
+    /** Copies vectors which moved far enough into the working buffers. Returns the number of vectors copied. */
+    private int collectMovingPoints(float[] oldCoords, float[] newCoords, int n) {
+        ensureCapacity(n);
+        final double minDispSq = minDisplacement * minDisplacement;
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            float x = newCoords[2 * i];
+            float y = newCoords[2 * i + 1];
+            float vx = x - oldCoords[2 * i];
+            float vy = y - oldCoords[2 * i + 1];
+            double lenSq = vx * vx + vy * vy;
+            if (lenSq < minDispSq || lenSq == 0)
+                continue;
+            double len = Math.sqrt(lenSq);
+            px[m] = x;
+            py[m] = y;
+            dx[m] = (float) (vx / len);
+            dy[m] = (float) (vy / len);
+            m++;
+        }
+        return m;
+    }
+
+    private void buildHash(int m) {
+        // Open addressing hash table, at most half full
+        hashSize = Integer.highestOneBit(Math.max(m, 8) * 2) * 2;
+        if (cellKeys.length < hashSize) {
+            cellKeys = new long[hashSize];
+            cellHeads = new int[hashSize];
+        }
+        Arrays.fill(cellHeads, 0, hashSize, -1);
+        for (int i = 0; i < m; i++) {
+            long key = cellKey(cellCoord(px[i]), cellCoord(py[i]));
+            int slot = findSlot(key);
+            if (cellHeads[slot] == -1)
+                cellKeys[slot] = key;
+            nextInCell[i] = cellHeads[slot];
+            cellHeads[slot] = i;
+        }
+    }
+
+    /** Fills {@link #neighbours} with the indices of the neighbours of point {@code i}, and returns the number of neighbours. */
+    private int findNeighbours(int i) {
+        final double rSq = radius * radius;
+        final int cx = cellCoord(px[i]);
+        final int cy = cellCoord(py[i]);
+        int count = 0;
+        for (int ox = -1; ox <= 1; ox++) {
+            for (int oy = -1; oy <= 1; oy++) {
+                long key = cellKey(cx + ox, cy + oy);
+                int slot = findSlot(key);
+                for (int j = cellHeads[slot]; j != -1; j = nextInCell[j]) {
+                    double ddx = px[j] - px[i];
+                    double ddy = py[j] - py[i];
+                    if (ddx * ddx + ddy * ddy <= rSq && dx[i] * dx[j] + dy[i] * dy[j] >= cosMaxAngle)
+                        neighbours[count++] = j;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int enqueue(int j, int cluster, int tail) {
+        if (label[j] == NOISE) {
+            // Border point
+            label[j] = cluster;
+        } else if (label[j] == UNVISITED) {
+            label[j] = cluster;
+            queue[tail++] = j;
+        }
+        return tail;
+    }
+
+    private MotionDetector.DetectedObject clusterToObject(int cluster, int m, boolean showEllipse, Mat feedbackImage) {
+        double sx = 0, sy = 0;
+        int count = 0;
+        for (int i = 0; i < m; i++) {
+            if (label[i] == cluster) {
+                sx += px[i];
+                sy += py[i];
+                count++;
+            }
+        }
+        Point[] points = new Point[count];
+        int k = 0;
+        for (int i = 0; i < m; i++) {
+            if (label[i] == cluster)
+                points[k++] = new Point(px[i], py[i]);
+        }
+        // The ellipse is only fitted if it is needed
+        MotionDetector.DetectedObject object = new MotionDetector.DetectedObject(new Point(sx / count, sy / count), points);
+        if (showEllipse && object.getEllipse() != null)
+            Imgproc.ellipse(feedbackImage, object.getEllipse(), Util.RGB(0, 255, 0));
+        return object;
+    }
+
+    private int cellCoord(float v) {
+        return (int) Math.floor(v / radius);
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    /** Returns the slot containing {@code key}, or the empty slot where it would be inserted. */
+    private int findSlot(long key) {
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & (hashSize - 1);
+        while (cellHeads[slot] != -1 && cellKeys[slot] != key)
+            slot = (slot + 1) & (hashSize - 1);
+        return slot;
+    }
+
+    private void ensureCapacity(int n) {
+        if (px.length < n) {
+            px = new float[n];
+            py = new float[n];
+            dx = new float[n];
+            dy = new float[n];
+            label = new int[n];
+            queue = new int[n];
+            neighbours = new int[n];
+            nextInCell = new int[n];
+        }
+    }
+}
@@ -5,4 +5,13 @@ import org.opencv.core.Mat;
 
 public interface ForegroundSegmenter {
     Mat segment(int frameIndex, Mat greyFrame, Mat colourFrame, Params params);
+
+    /** Segments a frame without updating any learned background model. By default, the same as {@link #segment}. */
+    default Mat classify(int frameIndex, Mat greyFrame, Mat colourFrame, Params params) {
+        return segment(frameIndex, greyFrame, colourFrame, params);
+    }
+
+    /** Discards any learned background model, e.g. after a sudden change in lighting. */
+    default void reset() {
+    }
 }
@@ -30,7 +30,7 @@ public class FrameLoop {
     }
 
 
-    public void run(Handler handler, String videoFile, Params.GraphicParams grParams, Params.SrcVideoParams srcParams, Params.TrackerParams params) throws IOException {
+    public void run(Handler handler, String videoFile, Params params) throws IOException {
 
         VideoPlayer player = new VideoPlayer(videoFile);
         if (!player.isOpened()) {
@@ -49,8 +49,12 @@ public class FrameLoop {
 
         // For each frame in the video...
         while (true) {
+            // Get current parameter values
+            final Params prm = params.snapshot();
+            final Params.TrackerParams trParams = prm.trParams;
+
             // Maybe read the next frame
-            if (grParams.running || player.getFrameIndex() == 0) {
+            if (prm.grParams.running || player.getFrameIndex() == 0) {
                 if (!player.read(rawFrame)) {
                     // Read failed - stop
                     break;
@@ -60,18 +64,18 @@ public class FrameLoop {
             if (rawFrame.size().width > 0) // rawFrame is empty at EOF
                 frame = rawFrame.clone();
             // Apply optional rotation, scaling to the frame
-            sz = transformFrame(srcParams, sz, frame);
+            sz = transformFrame(prm.srcParams, sz, frame);
 
             // Maybe equalize histogram
-            if (params.equalize)
+            if (trParams.equalize)
                 equalize(frame, frame);
 
             // Convert to greyscale
             Mat greyFrame = new Mat(frame.size(), CvType.CV_8UC1);
             cvtColor(frame, greyFrame, Imgproc.COLOR_BGR2GRAY);
             // Blur to reduce noise
-            if (params.blurSize > 0)
-                Imgproc.GaussianBlur(greyFrame, greyFrame, new Size(params.blurSize, params.blurSize), 0);
+            if (trParams.blurSize > 0)
+                Imgproc.GaussianBlur(greyFrame, greyFrame, new Size(trParams.blurSize, trParams.blurSize), 0);
 
             // Do something with the frame
             if (!handler.onFrame(greyFrame, frame)) {
@@ -0,0 +1,163 @@
+package com.jim.tracking;
+
+import com.jim.Params;
+import org.opencv.core.Mat;
+
+import java.util.List;
+
+/**
+ * The results of processing a single frame: detections, track states and optionally the feedback image.
+ * Track states are accessed by index, e.g. {@code frame.trackX(i)} for {@code i < frame.trackCount()}.
+ *
+ * A live snapshot shares the tracker's detections, tracks and feedback image, so it costs nothing to create
+ * but is only valid until processing of the frame finishes. A captured snapshot is a copy which doesn't share
+ * any mutable state with the tracking thread, so it can be handed to a {@link MotionDetector.SnapshotFilter}
+ * running on another thread (see {@link AsyncFilter}).
+ */
+public class FrameSnapshot {
+
+    private int frameIndex;
+    private double fps;
+    private long numOfFrames;
+    private Params params;
+    private DetectionBatch detections;
+    private Mat feedbackImage;
+    private boolean ownsImage;
+
+    // Live tracks, or null if the track states have been copied
+    private List<? extends KalmanTrack> tracks;
+    // Copied track states
+    private int numTracks;
+    private long[] trackIds;
+    private double[] xs;
+    private double[] ys;
+    private boolean[] positionChanged;
+    private int[] lastDetectedAt;
+
+    /** Creates an empty live snapshot, to be reused for each frame by calling {@link #set}. */
+    FrameSnapshot() {
+    }
+
+    /**
+     * Returns a live snapshot of the results of processing the current frame.
+     *
+     * @param detections Objects detected in the frame.
+     * @param tracks Current tracks.
+     * @param feedbackImage Feedback image, or null if it isn't required.
+     * @param params Parameter snapshot for the frame.
+     * @param camera Source of the frame.
+     */
+    public static FrameSnapshot live(DetectionBatch detections, List<? extends KalmanTrack> tracks, Mat feedbackImage,
+                                     Params params, VideoPlayer camera) {
+        return new FrameSnapshot().set(detections, tracks, feedbackImage, params, camera);
+    }
+
+    /**
+     * Returns a copy of the results of processing the current frame, which remains valid after
+     * the frame has been processed. Call {@link #release()} when it is no longer required.
+     *
+     * @param feedbackImage Feedback image, or null if it isn't required.
+     */
+    public static FrameSnapshot capture(DetectionBatch detections, List<? extends KalmanTrack> tracks, Mat feedbackImage,
+                                        Params params, VideoPlayer camera) {
+        FrameSnapshot copy = new FrameSnapshot();
+        copy.frameIndex = camera.getFrameIndex();
+        copy.fps = camera.getFps();
+        copy.numOfFrames = camera.getNumOfFrames();
+        copy.params = params;
+        copy.detections = detections.copy();
+        copy.feedbackImage = feedbackImage == null ? null : feedbackImage.clone();
+        copy.ownsImage = copy.feedbackImage != null;
+
+        final int n = tracks.size();
+        copy.numTracks = n;
+        copy.trackIds = new long[n];
+        copy.xs = new double[n];
+        copy.ys = new double[n];
+        copy.positionChanged = new boolean[n];
+        copy.lastDetectedAt = new int[n];
+        for (int i = 0; i < n; i++) {
+            final KalmanTrack track = tracks.get(i);
+            copy.trackIds[i] = track.getTrackId();
+            copy.xs[i] = track.getCurrentPosition().x;
+            copy.ys[i] = track.getCurrentPosition().y;
+            copy.positionChanged[i] = track.isPositionChanged();
+            copy.lastDetectedAt[i] = track.getLastDetectedAt();
+        }
+        return copy;
+    }
+
+    /** Makes this a live snapshot of the current frame. Returns this. */
+    FrameSnapshot set(DetectionBatch detections, List<? extends KalmanTrack> tracks, Mat feedbackImage,
+                      Params params, VideoPlayer camera) {
+        frameIndex = camera.getFrameIndex();
+        fps = camera.getFps();
+        numOfFrames = camera.getNumOfFrames();
+        this.params = params;
+        this.detections = detections;
+        this.tracks = tracks;
+        this.feedbackImage = feedbackImage;
+        ownsImage = false;
+        return this;
+    }
+
+    public int getFrameIndex() {
+        return frameIndex;
+    }
+
+    /** Returns the frame rate of the input video. */
+    public double getFps() {
+        return fps;
+    }
+
+    public long getNumOfFrames() {
+        return numOfFrames;
+    }
+
+    /** Returns the parameter values used to process this frame. Must not be modified. */
+    public Params getParams() {
+        return params;
+    }
+
+    public DetectionBatch getDetections() {
+        return detections;
+    }
+
+    /** Returns the number of tracks. */
+    public int trackCount() {
+        return tracks != null ? tracks.size() : numTracks;
+    }
+
+    public long trackId(int i) {
+        return tracks != null ? tracks.get(i).getTrackId() : trackIds[i];
+    }
+
+    public double trackX(int i) {
+        return tracks != null ? tracks.get(i).getCurrentPosition().x : xs[i];
+    }
+
+    public double trackY(int i) {
+        return tracks != null ? tracks.get(i).getCurrentPosition().y : ys[i];
+    }
+
+    /** Returns true if the position of track {@code i} changed in this frame. */
+    public boolean trackPositionChanged(int i) {
+        return tracks != null ? tracks.get(i).isPositionChanged() : positionChanged[i];
+    }
+
+    /** Returns the index of the frame in which track {@code i} was last detected. */
+    public int trackLastDetectedAt(int i) {
+        return tracks != null ? tracks.get(i).getLastDetectedAt() : lastDetectedAt[i];
+    }
+
+    /** Returns the feedback image, or null if it wasn't captured. */
+    public Mat getFeedbackImage() {
+        return feedbackImage;
+    }
+
+    /** Releases the copy of the feedback image, if any. */
+    public void release() {
+        if (ownsImage)
+            feedbackImage.release();
+    }
+}
@@ -0,0 +1,173 @@
+package com.jim.tracking;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Range;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Statistics of an 8-bit grey image, calculated at most once per frame and only when required.
+ *
+ * To reduce cost on large frames, statistics can be calculated from a subsampled grid of pixels
+ * (every {@code subsample}th pixel in each direction) rather than every pixel.
+ * Provides a histogram (from which the Otsu threshold is derived),
+ * and local means from an integral image for adaptive thresholding.
+ */
+public class FrameStatistics {
+    private final int subsample;
+
+    private Mat image;
+    private final Mat sampled = new Mat();
+    private boolean haveSample;
+
+    // Histogram
+    private final Mat hist = new Mat();
+    private final float[] bins = new float[256];
+    private boolean haveHistogram;
+    private final MatOfInt channels = new MatOfInt(0);
+    private final MatOfInt histSize = new MatOfInt(256);
+    private final MatOfFloat ranges = new MatOfFloat(0, 256);
+    private final Mat noMask = new Mat();
+
+    // Adaptive thresholding buffers
+    private final Mat padded = new Mat();
+    private final Mat integral = new Mat();
+    private final Mat sums = new Mat();
+    private final Mat smallThreshold = new Mat();
+    private final Mat fullThreshold = new Mat();
+    // Views of the integral image offset to the top-left, top-right, bottom-left and bottom-right corners of each block
+    private final Mat[] corners = new Mat[4];
+    private long cornersData;
+    private int cornersBlock;
+
+    /**
+     * @param subsample Statistics are calculated from every {@code subsample}th pixel in each direction, 1 means all pixels.
+     */
+    public FrameStatistics(int subsample) {
+        if (subsample < 1)
+            throw new IllegalArgumentException("Statistics subsample must be >= 1, found " + subsample);
+        this.subsample = subsample;
+    }
+
+    public int getSubsample() {
+        return subsample;
+    }
+
+    /** Discards statistics from the previous frame. Statistics are then calculated for {@code image} when requested. */
+    public void update(Mat image) {
+        this.image = image;
+        haveSample = false;
+        haveHistogram = false;
+    }
+
+    /** Returns the 256 bin histogram of the current image. The returned array is reused. */
+    public float[] histogram() {
+        if (!haveHistogram) {
+            List<Mat> images = Collections.singletonList(sample());
+            Imgproc.calcHist(images, channels, noMask, hist, histSize, ranges);
+            hist.get(0, 0, bins);
+            haveHistogram = true;
+        }
+        return bins;
+    }
+
+    /** Returns the threshold which best separates the histogram into 2 classes (Otsu's method). */
+    public int otsuThreshold() {
+        float[] h = histogram();
+        double total = 0, sum = 0;
+        for (int i = 0; i < h.length; i++) {
+            total += h[i];
+            sum += i * (double) h[i];
+        }
+        double w0 = 0, sum0 = 0;
+        double maxVariance = 0;
+        int threshold = 0;
+        for (int i = 0; i < h.length; i++) {
+            w0 += h[i];
+            sum0 += i * (double) h[i];
+            final double w1 = total - w0;
+            if (w0 == 0 || w1 == 0)
+                continue;
+            final double mu0 = sum0 / w0;
+            final double mu1 = (sum - sum0) / w1;
+            final double variance = w0 * w1 * (mu0 - mu1) * (mu0 - mu1);
+            if (variance > maxVariance) {
+                maxVariance = variance;
+                threshold = i;
+            }
+        }
+        return threshold;
+    }
+
+    /** Adaptive mean thresholding of the current image, equivalent to
+     * {@code Imgproc.adaptiveThreshold(image, dst, 255, ADAPTIVE_THRESH_MEAN_C, type, blockSize, C)}.
+     * If subsampling, local means are calculated on the subsampled grid using an integral image,
+     * then interpolated, so the result is approximate.
+     *
+     * @param dst Destination image, may be the current image.
+     * @param blockSize Size of the neighbourhood used to calculate local means (pixels in the full size image).
+     * @param C Constant subtracted from the local means.
+     * @param invert If true, pixels less than or equal to the threshold are set, otherwise pixels greater than the threshold.
+     */
+    public void adaptiveThreshold(Mat dst, int blockSize, double C, boolean invert) {
+        if (subsample == 1) {
+            Imgproc.adaptiveThreshold(image, dst, 255, Imgproc.ADAPTIVE_THRESH_MEAN_C,
+                    invert ? Imgproc.THRESH_BINARY_INV : Imgproc.THRESH_BINARY, blockSize, C);
+            return;
+        }
+
+        // Local means of the sampled image using an integral image, replicating pixels at the border
+        final Mat small = sample();
+        final int r = Math.max(1, blockSize / subsample) / 2;
+        final int b = 2 * r + 1;
+        Core.copyMakeBorder(small, padded, r, r, r, r, Core.BORDER_REPLICATE);
+        Imgproc.integral(padded, integral, CvType.CV_32S);
+        // Sum of each b x b block = I(y + b, x + b) - I(y, x + b) - I(y + b, x) + I(y, x)
+        prepareCorners(small.rows(), small.cols(), b);
+        Core.subtract(corners[3], corners[1], sums);
+        Core.subtract(sums, corners[2], sums);
+        Core.add(sums, corners[0], sums);
+
+        // Threshold = floor(mean - C), then interpolate to full size
+        sums.convertTo(smallThreshold, CvType.CV_8U, 1.0 / (b * b), -C - 0.5);
+        Imgproc.resize(smallThreshold, fullThreshold, image.size(), 0, 0, Imgproc.INTER_LINEAR);
+        Core.compare(image, fullThreshold, dst, invert ? Core.CMP_LE : Core.CMP_GT);
+    }
+
+    // =================================================================
+    // Private methods
+
+    /** (Re)creates the corner views of the integral image if it has been reallocated. */
+    private void prepareCorners(int h, int w, int b) {
+        if (cornersData == integral.dataAddr() && corners[0].rows() == h && corners[0].cols() == w && cornersBlock == b)
+            return;
+        for (int i = 0; i < 4; i++) {
+            if (corners[i] != null)
+                corners[i].release();
+            final int y = (i / 2) * b;
+            final int x = (i % 2) * b;
+            corners[i] = integral.submat(new Range(y, y + h), new Range(x, x + w));
+        }
+        cornersData = integral.dataAddr();
+        cornersBlock = b;
+    }
+
+    /** Returns the subsampled image. */
+    private Mat sample() {
+        if (subsample == 1)
+            return image;
+        if (!haveSample) {
+            Size size = new Size(Math.ceil(image.cols() / (double) subsample), Math.ceil(image.rows() / (double) subsample));
+            Imgproc.resize(image, sampled, size, 0, 0, Imgproc.INTER_NEAREST);
+            haveSample = true;
+        }
+        return sampled;
+    }
+}
@@ -0,0 +1,138 @@
+package com.jim.tracking;
+
+import com.jim.tracking.bg.BackgroundHandler;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+/**
+ * Detects frames where most of the image has changed at once, for example because lights flicker
+ * or the camera adjusts its exposure. Such frames produce a flood of spurious foreground regions,
+ * so it is better to ignore them than to detect objects in them.
+ *
+ * A frame is flagged if its mean intensity differs too much from the recent average, which is checked before
+ * the frame is processed (see {@link #checkFrame}), so it applies to every motion detector, and flagged frames
+ * are neither segmented nor learned by the foreground segmenter. A frame is also flagged if too large a fraction
+ * of it is foreground, which can only be checked after segmentation (see {@link #checkForeground}), and so only
+ * applies to detectors which segment the frame. A segmenter with a learned model has already learned from the first
+ * frame flagged in this way, but doesn't learn from following frames while the change continues
+ * (see {@link #shouldLearn()}). If the change lasts, the segmenter relearns its model from scratch (see {@link #shouldRelearn()}).
+ *
+ * Flagged frames aren't used to update the background (see {@link #shouldUpdateBackground()}), except while
+ * the background is first being built, or rebuilt after a reset, or when the change lasts so long that
+ * the background must adapt to it.
+ *
+ * For each frame, call {@link #checkFrame}, then optionally {@link #checkForeground}, then {@link #finishFrame()}.
+ */
+public class GlobalChangeGuard {
+    // Weight of the current frame in the running average of mean intensity
+    private static final double MEAN_ALPHA = 0.2;
+    // A change which is flagged in more consecutive frames than this is treated as lasting
+    private static final int MAX_IGNORED_FRAMES = 10;
+
+    private final double maxForegroundFraction;
+    private final double maxMeanShift;
+    private final boolean reset;
+    private double averageMean = Double.NaN;
+    // True if the current frame has been flagged
+    private boolean flagged;
+    // Number of consecutive flagged frames, 0 if the last frame wasn't flagged
+    private int flaggedFrames;
+    // True until the first frame that isn't flagged, both initially and after the background is reset
+    private boolean rebuilding = true;
+    // Values from the most recent frame, for reporting
+    private double foregroundFraction;
+    private double meanShift;
+
+    /**
+     * @param maxForegroundFraction Frames with a larger fraction (0 - 1) of foreground pixels are flagged. 0 means don't check.
+     * @param maxMeanShift Frames whose mean intensity differs from the recent average by more than this are flagged. 0 means don't check.
+     * @param reset If true, the background should be reset after a flagged frame.
+     */
+    public GlobalChangeGuard(double maxForegroundFraction, double maxMeanShift, boolean reset) {
+        this.maxForegroundFraction = maxForegroundFraction;
+        this.maxMeanShift = maxMeanShift;
+        this.reset = reset;
+    }
+
+    /** Starts checking a new frame, before it is processed. Returns true if the mean intensity of the frame
+     * has changed too much, in which case the frame shouldn't be processed. */
+    public boolean checkFrame(Mat greyFrame) {
+        flagged = false;
+        foregroundFraction = Double.NaN;
+        if (maxMeanShift > 0) {
+            final double mean = Core.mean(greyFrame).val[0];
+            meanShift = Double.isNaN(averageMean) ? 0 : Math.abs(mean - averageMean);
+            flagged = meanShift > maxMeanShift;
+            // Always update the average, so a lasting change in lighting is only flagged for a few frames
+            averageMean = Double.isNaN(averageMean) ? mean : averageMean + MEAN_ALPHA * (mean - averageMean);
+        }
+        return flagged;
+    }
+
+    /** Returns true if the frame has been flagged, or too large a fraction of it is foreground.
+     *
+     * @param foreground Segmented foreground (non-zero pixels are foreground).
+     */
+    public boolean checkForeground(Mat foreground) {
+        if (!flagged && maxForegroundFraction > 0) {
+            foregroundFraction = Core.countNonZero(foreground) / (double) foreground.total();
+            flagged = foregroundFraction > maxForegroundFraction;
+        }
+        return flagged;
+    }
+
+    /** Finishes checking the current frame. Returns true if it was flagged. */
+    public boolean finishFrame() {
+        flaggedFrames = flagged ? flaggedFrames + 1 : 0;
+        if (!flagged)
+            rebuilding = false;
+        return flagged;
+    }
+
+    /** Returns true if a foreground segmenter should update its learned model from the current frame,
+     * i.e. the previous frame wasn't flagged, or the change has lasted long enough that the model must adapt to it. */
+    public boolean shouldLearn() {
+        return flaggedFrames == 0 || rebuilding || flaggedFrames >= MAX_IGNORED_FRAMES;
+    }
+
+    /** Returns true if a foreground segmenter should replace its learned model with the current frame, because
+     * the change has just lasted long enough that it isn't going away, and the model would adapt to it only slowly. */
+    public boolean shouldRelearn() {
+        return !rebuilding && flaggedFrames == MAX_IGNORED_FRAMES;
+    }
+
+    /** Returns true if the background is still being built, either initially or after it was reset,
+     * so the frame last checked can't be compared with a usable background. */
+    public boolean isRebuilding() {
+        return rebuilding;
+    }
+
+    /** Returns true if the frame last finished should be used to update the background. */
+    public boolean shouldUpdateBackground() {
+        return flaggedFrames == 0 || rebuilding || flaggedFrames > MAX_IGNORED_FRAMES;
+    }
+
+    /** Discards the background after a flagged frame, so it is rebuilt starting from the next frame. */
+    public void resetBackground(BackgroundHandler backgroundHandler, ForegroundSegmenter foregroundSegmenter) {
+        backgroundHandler.reset();
+        foregroundSegmenter.reset();
+        rebuilding = true;
+    }
+
+    /** Returns true if the background should be reset after a flagged frame. */
+    public boolean shouldReset() {
+        return reset;
+    }
+
+    /** Returns a description of the values measured in the last frame. */
+    public String describeLastFrame() {
+        // The foreground isn't measured if the frame is flagged before it is segmented
+        return (Double.isNaN(foregroundFraction) ? "" : String.format("foreground %.1f%%, ", foregroundFraction * 100)) +
+                String.format("mean intensity shift %.1f", meanShift);
+    }
+
+    @Override
+    public String toString() {
+        return "max foreground fraction " + maxForegroundFraction + ", max mean shift " + maxMeanShift + ", reset " + reset;
+    }
+}
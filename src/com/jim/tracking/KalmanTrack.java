@@ -143,12 +143,17 @@ public class KalmanTrack {
     /** Attempts to assess the probability that a position represents this object.
      * Currently it's just the difference between the point and the predicted point. */
     public double assess(Point point) {
+        return assess(point.x, point.y);
+    }
+
+    /** Equivalent to {@link #assess(Point)}, but doesn't require a Point. */
+    public double assess(double x, double y) {
         // Only call predict once for every applied point
         if (!assessCalled) {
             assessCalled = true;
             lastPredictedPoint = pointFromMat(filter.predict());
         }
-        return Util.distance(lastPredictedPoint, point);
+        return Math.hypot(lastPredictedPoint.x - x, lastPredictedPoint.y - y);
     }
 
     /** Applies the specified point to this object, returning the corrected position. */
@@ -0,0 +1,115 @@
+package com.jim.tracking;
+
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Point;
+
+import java.util.Arrays;
+
+/**
+ * Spatial index over a set of keypoints, used to find the closest keypoint to a point.
+ *
+ * A point "belongs" to a keypoint if it lies within a radius of the keypoint, where
+ * the radius is proportional to the keypoint size. Keypoints are bucketed into a uniform
+ * grid with cells at least as large as the largest radius, so a query only needs to search the
+ * 3x3 block of cells around the query point, rather than every keypoint.
+ */
+class KeyPointIndex {
+    private final double radiusDenom;
+
+    private KeyPoint[] keyPoints = new KeyPoint[0];
+    private double cellSize;
+    private double minX, minY;
+    private int cols, rows;
+    // Keypoint indices sorted by cell, and index of the first entry for each cell (counting sort)
+    private int[] sorted = new int[0];
+    private int[] cellStart = new int[1];
+    private int[] cellOfPoint = new int[0];
+
+    /**
+     * @param radiusDenom A keypoint's radius is its size divided by this value.
+     */
+    KeyPointIndex(double radiusDenom) {
+        this.radiusDenom = radiusDenom;
+    }
+
+    /** Rebuilds the index for a new set of keypoints. */
+    void build(KeyPoint[] keyPoints) {
+        this.keyPoints = keyPoints;
+        final int n = keyPoints.length;
+        cols = rows = 0;
+        if (n == 0)
+            return;
+
+        // Grid bounds and cell size
+        double maxRadius = 0;
+        minX = minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (KeyPoint kp : keyPoints) {
+            maxRadius = Math.max(maxRadius, kp.size / radiusDenom);
+            minX = Math.min(minX, kp.pt.x);
+            minY = Math.min(minY, kp.pt.y);
+            maxX = Math.max(maxX, kp.pt.x);
+            maxY = Math.max(maxY, kp.pt.y);
+        }
+        if (maxRadius <= 0)
+            return;
+        // Don't let the grid get much bigger than the number of keypoints
+        cellSize = Math.max(maxRadius, Math.sqrt((maxX - minX + 1) * (maxY - minY + 1) / (4.0 * n)));
+        cols = (int) ((maxX - minX) / cellSize) + 1;
+        rows = (int) ((maxY - minY) / cellSize) + 1;
+
+        // Counting sort of keypoints by cell
+        final int numCells = cols * rows;
+        if (cellStart.length < numCells + 1)
+            cellStart = new int[numCells + 1];
+        Arrays.fill(cellStart, 0, numCells + 1, 0);
+        if (sorted.length < n) {
+            sorted = new int[n];
+            cellOfPoint = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+            int cell = (int) ((keyPoints[i].pt.y - minY) / cellSize) * cols + (int) ((keyPoints[i].pt.x - minX) / cellSize);
+            cellOfPoint[i] = cell;
+            cellStart[cell]++;
+        }
+        // Cumulative counts, so cellStart[c] is the end of cell c
+        for (int c = 1; c <= numCells; c++)
+            cellStart[c] += cellStart[c - 1];
+        // Fill each cell backwards from its end, leaving cellStart[c] at the start of cell c
+        for (int i = n - 1; i >= 0; i--)
+            sorted[--cellStart[cellOfPoint[i]]] = i;
+    }
+
+    /** Returns the index of the closest keypoint whose radius contains {@code pt}, or -1 if there isn't one.
+     * If {@code distance} is not null, {@code distance[0]} is set to the distance to the keypoint. */
+    int closest(Point pt, double[] distance) {
+        if (cols == 0)
+            return -1;
+        final int cx = (int) Math.floor((pt.x - minX) / cellSize);
+        final int cy = (int) Math.floor((pt.y - minY) / cellSize);
+        int best = -1;
+        double bestDist = Double.MAX_VALUE;
+        for (int y = Math.max(0, cy - 1); y <= Math.min(rows - 1, cy + 1); y++) {
+            for (int x = Math.max(0, cx - 1); x <= Math.min(cols - 1, cx + 1); x++) {
+                final int cell = y * cols + x;
+                for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                    final int i = sorted[k];
+                    final KeyPoint kp = keyPoints[i];
+                    final double dist = Math.hypot(pt.x - kp.pt.x, pt.y - kp.pt.y);
+                    if (dist < kp.size / radiusDenom && dist < bestDist) {
+                        best = i;
+                        bestDist = dist;
+                    }
+                }
+            }
+        }
+        if (best >= 0 && distance != null)
+            distance[0] = bestDist;
+        return best;
+    }
+
+    /** Returns the keypoint with the specified index. */
+    KeyPoint get(int index) {
+        return keyPoints[index];
+    }
+}
@@ -1,42 +1,35 @@
 package com.jim.tracking;
 
-import com.jim.Params;
-import org.opencv.core.CvType;
-import org.opencv.core.Mat;
 import org.opencv.video.BackgroundSubtractorMOG2;
 import org.opencv.video.Video;
 
-public class MOGForegroundSegmenter implements ForegroundSegmenter {
-
-    private final BackgroundSubtractorMOG2 subtractor;
-    private Mat fgMask;
+public class MOGForegroundSegmenter extends SubtractorSegmenter {
 
     public MOGForegroundSegmenter() {
         this(500, 16, true);
     }
 
     public MOGForegroundSegmenter(int history, int varThreshold, boolean detectShadows) {
-        subtractor = Video.createBackgroundSubtractorMOG2(history, varThreshold, detectShadows);
-        subtractor.setShadowValue(0);
+        this(history, varThreshold, detectShadows, 1, false, 1);
     }
 
-    @Override
-    public Mat segment(int frameIndex, Mat greyFrame, Mat colourFrame, Params params) {
-        // If it's the first frame...
-        if (fgMask == null)
-            // Create a zero Matrix
-            fgMask = Mat.zeros(colourFrame.size(), CvType.CV_64F);
-
-        subtractor.apply(colourFrame, fgMask);
-        return fgMask;
+    public MOGForegroundSegmenter(int history, int varThreshold, boolean detectShadows, double scale, boolean grey, int updateInterval) {
+        super(create(history, varThreshold, detectShadows), history, scale, grey, updateInterval);
     }
 
     @Override
     public String toString() {
+        BackgroundSubtractorMOG2 subtractor = (BackgroundSubtractorMOG2) this.subtractor;
         return getClass().getSimpleName() + ":" +
                 subtractor.getHistory() + ":" +
                 (int)Math.round(subtractor.getVarThreshold()) + ":" +
-                subtractor.getDetectShadows();
+                subtractor.getDetectShadows() + ":" +
+                super.toString();
     }
 
+    private static BackgroundSubtractorMOG2 create(int history, int varThreshold, boolean detectShadows) {
+        BackgroundSubtractorMOG2 subtractor = Video.createBackgroundSubtractorMOG2(history, varThreshold, detectShadows);
+        subtractor.setShadowValue(0);
+        return subtractor;
+    }
 }
@@ -0,0 +1,111 @@
+package com.jim.tracking;
+
+import com.jim.Params;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A sequence of dilations and erosions, compiled once so it can be applied cheaply to every frame.
+ *
+ * Structuring elements are constructed once rather than per frame. Consecutive identical steps
+ * are combined into a single operation with multiple iterations, and an erosion followed by a
+ * dilation of the same size (or vice versa) becomes a single morphological open (or close).
+ *
+ * {@link Params.KernelShape#RECT} kernels are much cheaper than elliptical kernels, particularly when large,
+ * because OpenCV applies them separably (a row pass then a column pass), and iterations of a
+ * rectangular kernel are performed as a single pass with a larger kernel.
+ */
+public class MorphologyPlan {
+    private static final Point ANCHOR = new Point(-1, -1);
+
+    private final double[] steps;
+    private final Params.KernelShape shape;
+    private final List<Op> ops = new ArrayList<>();
+
+    /**
+     * @param steps Dilation (+ve) or erosion (-ve) kernel sizes, applied in order.
+     * @param shape Kernel shape.
+     */
+    public MorphologyPlan(double[] steps, Params.KernelShape shape) {
+        this.steps = steps.clone();
+        this.shape = shape;
+        compile();
+    }
+
+    /** Returns {@code plan} if it implements {@code steps} with {@code shape}, otherwise a new plan which does. */
+    public static MorphologyPlan update(MorphologyPlan plan, double[] steps, Params.KernelShape shape) {
+        if (plan != null && plan.shape == shape && Arrays.equals(plan.steps, steps))
+            return plan;
+        return new MorphologyPlan(steps, shape);
+    }
+
+    /** Applies the operations to {@code image} in place. */
+    public void apply(Mat image) {
+        for (Op op : ops)
+            Imgproc.morphologyEx(image, image, op.type, op.kernel, ANCHOR, op.iterations);
+    }
+
+    @Override
+    public String toString() {
+        return ops.isEmpty() ? "none" : ops.toString();
+    }
+
+    // =================================================================
+    // Private methods
+
+    private static class Op {
+        int type;
+        final int size;
+        int iterations = 1;
+        Mat kernel;
+
+        Op(int type, int size) {
+            this.type = type;
+            this.size = size;
+        }
+
+        @Override
+        public String toString() {
+            String name = type == Imgproc.MORPH_DILATE ? "dilate" :
+                    type == Imgproc.MORPH_ERODE ? "erode" :
+                    type == Imgproc.MORPH_OPEN ? "open" : "close";
+            return name + " " + size + (iterations > 1 ? " x" + iterations : "");
+        }
+    }
+
+    private void compile() {
+        // Combine repeated steps into iterations
+        List<Op> simple = new ArrayList<>();
+        for (double v : steps) {
+            final int size = (int) Math.abs(v);
+            // Sizes of 0 or 1 have no effect
+            if (size <= 1)
+                continue;
+            final int type = v > 0 ? Imgproc.MORPH_DILATE : Imgproc.MORPH_ERODE;
+            Op last = simple.isEmpty() ? null : simple.get(simple.size() - 1);
+            if (last != null && last.type == type && last.size == size)
+                last.iterations++;
+            else
+                simple.add(new Op(type, size));
+        }
+
+        // Combine erode/dilate pairs into open or close
+        for (int i = 0; i < simple.size(); i++) {
+            Op op = simple.get(i);
+            Op next = i + 1 < simple.size() ? simple.get(i + 1) : null;
+            if (next != null && next.size == op.size && next.iterations == op.iterations && next.type != op.type) {
+                op.type = op.type == Imgproc.MORPH_ERODE ? Imgproc.MORPH_OPEN : Imgproc.MORPH_CLOSE;
+                i++;
+            }
+            op.kernel = Imgproc.getStructuringElement(shape == Params.KernelShape.RECT ? Imgproc.MORPH_RECT : Imgproc.MORPH_ELLIPSE,
+                    new Size(op.size, op.size));
+            ops.add(op);
+        }
+    }
+}
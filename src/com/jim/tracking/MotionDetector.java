@@ -1,13 +1,20 @@
 package com.jim.tracking;
 
 import com.jim.Params;
+import com.jim.tracking.bg.BackgroundHandler;
 import com.jim.util.ObserverMgr;
 import com.jim.util.Util;
+import org.opencv.core.CvType;
 import org.opencv.core.KeyPoint;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
+import org.opencv.core.Rect;
 import org.opencv.core.RotatedRect;
 import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.imgproc.Moments;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -24,36 +31,173 @@ public class MotionDetector implements FrameLoop.Handler {
     private Params params;
 
     private final int KEYPOINT_RADIUS_DENOM = 2;
+    private final KeyPointIndex keyPointIndex = new KeyPointIndex(KEYPOINT_RADIUS_DENOM);
+    private final double[] keyPointDistance = new double[1];
+    private final Point centroid = new Point();
+    // Reused for every frame
+    private final DetectionBatch detections = new DetectionBatch();
+    private final List<TrackWithEllipse> trackedObjects = new ArrayList<>();
+    private final FrameSnapshot liveFrame = new FrameSnapshot();
 
     public interface Filter {
         void onCameraOpened(VideoPlayer camera);
-        void handle(List<DetectedObject> detectedObjects, List<TrackWithEllipse> tracks, Mat greyFrame, Mat feedbackImage, Params opts, VideoPlayer camera);
+        void handle(DetectionBatch detections, List<TrackWithEllipse> tracks, Mat greyFrame, Mat feedbackImage, Params opts, VideoPlayer camera);
         void onDone(VideoPlayer camera);
+
+        /** Adapter for callers which have a list of detected objects. */
+        default void handle(List<DetectedObject> detectedObjects, List<TrackWithEllipse> tracks, Mat greyFrame, Mat feedbackImage, Params opts, VideoPlayer camera) {
+            handle(DetectionBatch.of(detectedObjects), tracks, greyFrame, feedbackImage, opts, camera);
+        }
     }
 
+    /** A filter which only has side effects (e.g. writing output), and only needs a snapshot of the results of each frame.
+     * Snapshot filters are passed a live snapshot of the frame, unless they are run on another thread by wrapping
+     * them in an {@link AsyncFilter}, which passes them a copy. */
+    public interface SnapshotFilter extends Filter {
+        void handle(FrameSnapshot frame);
+
+        /** Returns true if {@link #handle(FrameSnapshot)} uses the feedback image. */
+        default boolean needsFeedbackImage() {
+            return false;
+        }
+
+        /** Returns true if frames may be skipped when output runs asynchronously and falls behind,
+         * which is only acceptable for display and video, not for files of results. */
+        default boolean canDropFrames() {
+            return false;
+        }
+
+        /** Runs synchronously on a live snapshot which shares the frame's data. */
+        @Override
+        default void handle(DetectionBatch detections, List<TrackWithEllipse> tracks, Mat greyFrame, Mat feedbackImage, Params opts, VideoPlayer camera) {
+            handle(FrameSnapshot.live(detections, tracks, feedbackImage, opts, camera));
+        }
+    }
+
+    /** A detected object. Geometry other than the centroid (perimeter, ellipse, bounding rectangle)
+     * is calculated from the object's outline when first requested, so it costs nothing unless used. */
     public static class DetectedObject {
-        RotatedRect ellipse;
         Point centroid;
         public KeyPoint keyPoint;   // Closest key point to the moving object
         public double keyPointDistance; // Distance from centroid to keyPoint
 
+        // Outline of the object, or null
+        private final MatOfPoint contour;
+        // Points which make up the object if there is no contour, or null
+        private final Point[] points;
+        // Lazily calculated geometry
+        private MatOfPoint2f points2f;
+        private Moments moments;
+        private double perimeter = -1;
+        private RotatedRect ellipse;
+        private boolean haveEllipse;
+        private Rect boundingRect;
+
         public DetectedObject(Point centroid) {
             this.centroid = centroid;
+            this.contour = null;
+            this.points = null;
+        }
+
+        /** An object consisting of a set of points, e.g. a cluster of features. */
+        public DetectedObject(Point centroid, Point[] points) {
+            this.centroid = centroid;
+            this.contour = null;
+            this.points = points;
+        }
+
+        /** An object outlined by a contour. The centroid is calculated from the contour moments. */
+        public DetectedObject(MatOfPoint contour) {
+            this.contour = contour;
+            this.points = null;
+            Moments mu = getMoments();
+            this.centroid = new Point(mu.get_m10() / mu.get_m00(), mu.get_m01() / mu.get_m00());
         }
 
         public Point currentPos() {
             return centroid;
 //            return keyPoint.pt;
         }
+
+        /** Returns the outline of this object, or null if it doesn't have one. */
+        public MatOfPoint getContour() {
+            return contour;
+        }
+
+        /** Returns the moments of the contour, or null if there is no contour. */
+        public Moments getMoments() {
+            if (moments == null && contour != null)
+                moments = Imgproc.moments(contour);
+            return moments;
+        }
+
+        /** Returns the length of the contour, or 0 if there is no contour. */
+        public double getPerimeter() {
+            if (perimeter < 0)
+                perimeter = contour == null ? 0 : Imgproc.arcLength(getPoints2f(), true);
+            return perimeter;
+        }
+
+        /** Returns an ellipse fitted to the object, or null if there are fewer than 5 points. */
+        public RotatedRect getEllipse() {
+            if (!haveEllipse) {
+                MatOfPoint2f p = getPoints2f();
+                if (p != null && p.total() >= 5)
+                    ellipse = Imgproc.fitEllipse(p);
+                haveEllipse = true;
+            }
+            return ellipse;
+        }
+
+        /** Returns true if an ellipse has been fitted to this object, i.e. {@link #getEllipse()} is now cheap. */
+        public boolean hasEllipse() {
+            return haveEllipse;
+        }
+
+        /** Returns the upright bounding rectangle of the object, or null if it has no points. */
+        public Rect getBoundingRect() {
+            if (boundingRect == null) {
+                MatOfPoint2f p = getPoints2f();
+                if (p != null)
+                    boundingRect = Imgproc.boundingRect(p);
+            }
+            return boundingRect;
+        }
+
+        /** Returns the minimum area (rotated) rectangle enclosing the object, or null if it has no points. Not cached. */
+        public RotatedRect getMinAreaRect() {
+            MatOfPoint2f p = getPoints2f();
+            return p == null ? null : Imgproc.minAreaRect(p);
+        }
+
+        private MatOfPoint2f getPoints2f() {
+            if (points2f == null) {
+                if (contour != null) {
+                    points2f = new MatOfPoint2f();
+                    contour.convertTo(points2f, CvType.CV_32F);
+                } else if (points != null) {
+                    points2f = new MatOfPoint2f(points);
+                }
+            }
+            return points2f;
+        }
     }
 
     public interface Detector {
-        ArrayList<DetectedObject> detect(int frameIndex, Mat greyFrame, Mat colourFrame, Params params, Mat feedbackImage);
+        /** Detects objects in a frame, replacing the contents of {@code result}. */
+        void detect(int frameIndex, Mat greyFrame, Mat colourFrame, Params params, Mat feedbackImage, DetectionBatch result);
+
+        /** Adapter for callers which require a list of detected objects. */
+        default ArrayList<DetectedObject> detect(int frameIndex, Mat greyFrame, Mat colourFrame, Params params, Mat feedbackImage) {
+            DetectionBatch batch = new DetectionBatch();
+            detect(frameIndex, greyFrame, colourFrame, params, feedbackImage, batch);
+            return new ArrayList<>(batch.asList());
+        }
     }
 
     public void run(Params params) throws IOException {
         this.params = params;
-        new FrameLoop().run(this, params.srcParams.videoFile, params.grParams, params.srcParams, params.trParams);
+        new FrameLoop().run(this, params.srcParams.videoFile, params);
     }
 
     // ==========================================================================
@@ -79,6 +223,9 @@ public class MotionDetector implements FrameLoop.Handler {
 
     @Override
     public boolean onFrame(Mat greyFrame, Mat colourFrame) {
+        // Use the same parameter values for every stage of this frame, even if they are changed in the meantime
+        final Params params = this.params.snapshot();
+
         if (params.grParams.verbose && params.grParams.running)
             logProgress(cameraInfo.getFrameIndex());
 
@@ -91,41 +238,53 @@ public class MotionDetector implements FrameLoop.Handler {
         // Apply mask.
         // Ideally, this would be done on the raw frame (i.e. in com.jim.tracking.FrameLoop.run,
         // before rotation, scaling, blur), however that messes up the feedback image
-        synchronized (params.trParams) {
-            Region tm = params.trParams.getTransformedMask();
-            if (tm != null) {
-                greyFrame = tm.mask(greyFrame, params.trParams.thresholdInvert ? Util.WHITE : Util.BLACK);
-                colourFrame = tm.mask(colourFrame, params.trParams.thresholdInvert ? Util.WHITE : Util.BLACK);
-                tm.draw(feedbackImage, Util.RGB(200, 0, 0), null);
-            }
+        Region tm = params.trParams.getTransformedMask();
+        if (tm != null) {
+            greyFrame = tm.mask(greyFrame, params.trParams.thresholdInvert ? Util.WHITE : Util.BLACK);
+            colourFrame = tm.mask(colourFrame, params.trParams.thresholdInvert ? Util.WHITE : Util.BLACK);
+            tm.draw(feedbackImage, Util.RGB(200, 0, 0), null);
         }
 
-        // Find moving objects
-        List<DetectedObject> objects = params.trParams.detector.detect(cameraInfo.getFrameIndex(), greyFrame, colourFrame, params, feedbackImage);
+        // Find moving objects, unless the lighting has changed, otherwise we get a flood of detections
+        final GlobalChangeGuard guard = params.trParams.globalChangeGuard;
+        if (guard != null && guard.checkFrame(greyFrame))
+            detections.clear();
+        else
+            params.trParams.detector.detect(cameraInfo.getFrameIndex(), greyFrame, colourFrame, params, feedbackImage, detections);
+        if (guard != null && guard.finishFrame() && params.grParams.verbose)
+            System.out.println("Frame " + cameraInfo.getFrameIndex() + ": global change detected (" + guard.describeLastFrame() + ")" +
+                    (guard.isRebuilding() ? " while building background" : "") + ", skipping detection");
 
-        // This is purely experimental and can't be turned on by the user
         if (params.trParams.correlateObjectsWithFeatures) {
             // Find features in grey frame
             KeyPoint[] keyPoints = fDetector.detect(greyFrame, feedbackImage, params.grParams.showFeatures ? (1.0 / KEYPOINT_RADIUS_DENOM) : 0);
             // Match up moving objects with features - motion without a feature is probably just noise
-            objects = matchObjectsWithFeatures(objects, keyPoints);
+            matchObjectsWithFeatures(detections, keyPoints);
         }
 
         // Apply any filters in order
-        List<TrackWithEllipse> trackedObjects = new ArrayList<>();
+        trackedObjects.clear();
         boolean success = true;
         try {
             for (Filter filter : params.trParams.filters) {
-                filter.handle(objects, trackedObjects, greyFrame, feedbackImage, params, cameraInfo);
+                if (filter instanceof SnapshotFilter)
+                    // Snapshot filters share one live snapshot, rather than creating one per filter per frame
+                    ((SnapshotFilter) filter).handle(liveFrame.set(detections, trackedObjects, feedbackImage, params, cameraInfo));
+                else
+                    filter.handle(detections, trackedObjects, greyFrame, feedbackImage, params, cameraInfo);
             }
         } catch (Exception e) {
             e.printStackTrace();
             success = false;
         }
 
-        // Pass the frame to the background handler
-        params.trParams.backgroundHandler.processFrame(
-                params.trParams.backgroundHandler.canHandleColour() ? colourFrame : greyFrame);
+        // Pass the frame to the background handler, unless it was flagged as a global change,
+        // in which case it would corrupt the background
+        final BackgroundHandler backgroundHandler = params.trParams.backgroundHandler;
+        if (guard == null || guard.shouldUpdateBackground())
+            backgroundHandler.processFrame(backgroundHandler.canHandleColour() ? colourFrame : greyFrame);
+        else if (guard.shouldReset())
+            guard.resetBackground(backgroundHandler, params.trParams.foregroundSegmenter);
 
         feedbackImage.release();
 
@@ -152,42 +311,33 @@ public class MotionDetector implements FrameLoop.Handler {
 
     /** Filters out detected moving objects which aren't associated with a feature keypoint.
      *
-     * @param objects Detected moving objects
+     * @param objects Detected moving objects, objects without a keypoint are removed
      * @param keyPoints Static feature keypoints
-     * @return list of meaningful detected objects.
      */
-    private List<DetectedObject> matchObjectsWithFeatures(List<DetectedObject> objects, KeyPoint[] keyPoints) {
-        List<MotionDetector.DetectedObject> result = new ArrayList<>();
-
+    private void matchObjectsWithFeatures(DetectionBatch objects, KeyPoint[] keyPoints) {
+        keyPointIndex.build(keyPoints);
         // For each detected object...
-        for (MotionDetector.DetectedObject object : objects) {
-            Point objPos = object.centroid;
-            // For each keypoint...
-            for (KeyPoint keyPoint : keyPoints) {
-                // Calculate distance from object to keypoint
-                double dist = Util.distance(objPos, keyPoint.pt);
-                // If object is within significant keypoint radius, use it
-                if (dist < keyPoint.size / KEYPOINT_RADIUS_DENOM) {
-                    if (object.keyPoint == null)
-                        result.add(object);
-                    // Is it the closest keypoint?
-                    if (object.keyPoint == null || object.keyPointDistance > dist) {
-                        object.keyPoint = keyPoint;
-                        object.keyPointDistance = dist;
-                    }
-                    break;
-                }
+        int kept = 0;
+        for (int i = 0; i < objects.size(); i++) {
+            // Find the closest keypoint which has the object within its significant radius
+            centroid.x = objects.x(i);
+            centroid.y = objects.y(i);
+            int closest = keyPointIndex.closest(centroid, keyPointDistance);
+            if (closest >= 0) {
+                objects.move(i, kept);
+                objects.setKeyPoint(kept, keyPointIndex.get(closest), keyPointDistance[0]);
+                kept++;
             }
         }
-        return result;
+        objects.truncate(kept);
     }
 
     private void updateTransformedMask() {
-        synchronized (params.trParams) {
-            Params.TrackerParams prm = params.trParams;
+        params.update(p -> {
+            Params.TrackerParams prm = p.trParams;
             prm.setTransformedMask(null);
             if (prm.getMask() != null)
-                prm.setTransformedMask(prm.getMask().transformForParams(params.srcParams, new Size(cameraInfo.getfWidth(), cameraInfo.getfHeight()), false));
-        }
+                prm.setTransformedMask(prm.getMask().transformForParams(p.srcParams, new Size(cameraInfo.getfWidth(), cameraInfo.getfHeight()), false));
+        });
     }
 }
\ No newline at end of file
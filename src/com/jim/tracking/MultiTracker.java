@@ -28,6 +28,7 @@ public class MultiTracker implements MotionDetector.Filter {
     private final KalmanTrack.Cfg cfg;
     private final int firstFrameToProcess;
     private final int noTracksAfter;
+    private final boolean fitEllipses;
     private List<TrackWithEllipse> trackingObjects = new ArrayList<>();
 
     private static final int TR_UNASSIGNED = -1;
@@ -37,13 +38,28 @@ public class MultiTracker implements MotionDetector.Filter {
     private static final int OBJ_NEW_TRACK = OBJ_UNASSIGNED;
     private boolean alreadyWarnedEmpty = false;
 
+    // Working storage, reused for every frame
+    private List<TrackWithEllipse> spareTracks = new ArrayList<>();
+    private int numTracks;
+    private int numObjects;
+    private TrackWithEllipse[] tracksArr = new TrackWithEllipse[0];
+    // Distances from each object to each track prediction
+    private double[] distances = new double[0];
+    private double[] trackAges = new double[0];
+    private int[] assignedTrackToObject = new int[0];
+    private int[] bestTrackToObject = new int[0];
+    private int[] assignedObjectToTrack = new int[0];
+    private int[] bestObjectToTrack = new int[0];
+
     /**
      *  @param cfg Kalman filter configuration.
      * @param firstFrameToProcess No tracks will be created before this frame.
      * @param noTracksAfter If true, new tracks cannot be created after this frame number.
+     * @param fitEllipses If true, an ellipse is fitted to the object which starts each track.
      */
-    public MultiTracker(KalmanTrack.Cfg cfg, int firstFrameToProcess, int noTracksAfter) {
+    public MultiTracker(KalmanTrack.Cfg cfg, int firstFrameToProcess, int noTracksAfter, boolean fitEllipses) {
         this.cfg = cfg;
+        this.fitEllipses = fitEllipses;
         this.firstFrameToProcess = firstFrameToProcess - 1; // Convert 1-based index to 0-based
         this.noTracksAfter = noTracksAfter;
         if (noTracksAfter < firstFrameToProcess)
@@ -56,12 +72,12 @@ public class MultiTracker implements MotionDetector.Filter {
     // Overrides
 
     @Override
-    public void handle(List<MotionDetector.DetectedObject> detectedObjects, List<TrackWithEllipse> tracks, Mat greyFrame, Mat feedbackImage, Params opts, VideoPlayer camera) {
+    public void handle(DetectionBatch detections, List<TrackWithEllipse> tracks, Mat greyFrame, Mat feedbackImage, Params opts, VideoPlayer camera) {
 
         int frameIndex = camera.getFrameIndex();
         if (frameIndex >= firstFrameToProcess) {
             // Try to match detected objects to existing tracked objects
-            trackingObjects = trackMulti(detectedObjects, trackingObjects, opts,
+            trackingObjects = trackMulti(detections, trackingObjects, opts,
                     frameIndex <= noTracksAfter, greyFrame.size(), frameIndex);
             tracks.addAll(trackingObjects);
 
@@ -104,8 +120,9 @@ public class MultiTracker implements MotionDetector.Filter {
     // Private
 
     /** Returns a list of tracks corresponding to the detected objects.
+     * The returned list is reused, so it is only valid until the next call.
      *
-     * @param detectedObjects Objects detected by motion detection.
+     * @param objects Objects detected by motion detection.
      * @param tracks Pre-existing tracks.
      * @param params User specified parameter values.
      * @param allowNewTracks If false, tracks can only be created in the starting frame.
@@ -113,50 +130,36 @@ public class MultiTracker implements MotionDetector.Filter {
      * @param frameNumber Number of this frame.
      * @return new list of tracks.
      */
-    private List<TrackWithEllipse> trackMulti(List<MotionDetector.DetectedObject> detectedObjects, List<TrackWithEllipse> tracks, Params params, boolean allowNewTracks, Size imageSize, int frameNumber) {
+    private List<TrackWithEllipse> trackMulti(DetectionBatch objects, List<TrackWithEllipse> tracks, Params params, boolean allowNewTracks, Size imageSize, int frameNumber) {
 
         // Calculate distance between every pair of detected objects and existing tracks
-        final int numTracks = tracks.size();
-        final int numObjects = detectedObjects.size();
-        TrackWithEllipse[] tracksArr = tracks.toArray(new TrackWithEllipse[numTracks]);
-        MotionDetector.DetectedObject[] objectsArr = detectedObjects.toArray(new MotionDetector.DetectedObject[numObjects]);
-        double[][] distances = buildDistanceMatrix(tracksArr, objectsArr, 0, false);
+        numTracks = tracks.size();
+        numObjects = objects.size();
+        ensureCapacity();
+        tracks.toArray(tracksArr);
+        buildDistanceMatrix(objects);
         // Get vector times since last detection for tracks. This is so we can prioritise newer tracks
-        double[] trackAges = buildTimesVector(tracksArr, params.trParams.ageWeighting, frameNumber);
+        buildTimesVector(params.trParams.ageWeighting, frameNumber);
 
-        // Build matrix of distances between every pair of objects
-        double[][] objDistances = new double[numObjects][numObjects];
-        for (int i = 0; i < numObjects - 1; i++) {
-            for (int j = 1; j < numObjects; j++) {
-                objDistances[i][j] = objDistances[j][i] = Util.distance(objectsArr[i].centroid, objectsArr[j].centroid);
-            }
-        }
         // We need:
         //   for each track, either an object or nothing (which indicates it has stopped)
         //   for each object, either an existing track, a new track, or nothing (which indicates it is a spurious object)
-        int[] trackActions;
-        int[] objActions;
-        if (numObjects > 0) {
-            int[][] assignments = assignTracksAndObjects(distances, objDistances, trackAges, params.trParams.maxJump, params.trParams.minGap);
-            trackActions = assignments[0];
-            objActions = assignments[1];
-        } else {
-            // All tracks are stopped
-            trackActions = new int[numTracks];
-            Arrays.fill(trackActions, TR_STOPPED);
-            // No objects
-            objActions = new int[0];
-        }
+        Arrays.fill(assignedTrackToObject, 0, numTracks, TR_UNASSIGNED);
+        Arrays.fill(assignedObjectToTrack, 0, numObjects, OBJ_UNASSIGNED);
+        if (numObjects > 0)
+            assignTracksAndObjects(objects, params.trParams.maxJump, params.trParams.minGap);
+        // else all tracks are stopped
 
         // Record retired tracks so they can be reported
         int nRetiredTracks = 0;
 
         // Handle existing tracks
-        List<TrackWithEllipse> result = new ArrayList<>();
+        List<TrackWithEllipse> result = spareTracks;
+        result.clear();
         for (int i = 0; i < numTracks; i++) {
             boolean add = true;
             TrackWithEllipse track = tracksArr[i];
-            int action = trackActions[i];
+            int action = assignedTrackToObject[i];
             // Each existing track is either assigned to an object or stopped
             if (action == TR_STOPPED) {
                 // Optionally terminate a track if it goes outside the region.
@@ -178,13 +181,15 @@ public class MultiTracker implements MotionDetector.Filter {
                 }
                 track.stopped();
             } else {
-                track.apply(objectsArr[action].currentPos());
+                track.apply(new Point(objects.x(action), objects.y(action)));
                 track.setLastDetectedAt(frameNumber);
             }
             if (add) {
                 result.add(track);
             }
         }
+        // Don't hold on to tracks which may have been removed
+        Arrays.fill(tracksArr, 0, numTracks, null);
 
         // Report number of retired tracks
         if (nRetiredTracks > 0)
@@ -193,146 +198,98 @@ public class MultiTracker implements MotionDetector.Filter {
 
         // Create any new tracks
         if (allowNewTracks) {
-            for (int objIdx : objActions) {
-                        MotionDetector.DetectedObject obj = objectsArr[objIdx];
-                        TrackWithEllipse track = new TrackWithEllipse(nextObjectId++, cfg, obj.centroid, obj.ellipse, frameNumber);
-                        track.apply(obj.currentPos());
-                        result.add(track);
-                    }
+            for (int objIdx = 0; objIdx < numObjects; objIdx++) {
+                if (assignedObjectToTrack[objIdx] == OBJ_NEW_TRACK) {
+                    MotionDetector.DetectedObject obj = objects.object(objIdx);
+                    TrackWithEllipse track = new TrackWithEllipse(nextObjectId++, cfg, obj.centroid,
+                            fitEllipses ? obj.getEllipse() : null, frameNumber);
+                    track.apply(obj.currentPos());
+                    result.add(track);
+                }
+            }
         }
 
 //        System.out.println(numObjects + " objects -> tracks: " + Util.join(result, ", "));
 
+        // The list of old tracks is reused next time
+        spareTracks = tracks;
         return result;
     }
 
     /**
+     * Assigns tracks to objects. On return, {@code assignedTrackToObject} contains the object index for each track
+     * (or {@link #TR_UNASSIGNED}), and {@code assignedObjectToTrack} contains {@link #OBJ_NEW_TRACK} for objects which
+     * require new tracks.
      *
-     * @param distances matrix of distances from objects to tracks.
-     * @param objectDistances matrix of distances between every pair of detected objects.
-     * @param trackAges Weighted age (time since last detection) of each track.
+     * @param objects Objects detected in this frame.
      * @param maxJump maximum distance in a single step allowed within a track.
      * @param minGap duplicate objects closer than this are ignored.
-     * @return assignments - value[0] array of tracks to object indices, value[1] is array of objects which require new tracks.
      */
-    private int[][] assignTracksAndObjects(double[][] distances, double[][] objectDistances, double[] trackAges, double maxJump, double minGap) {
-
-        final int numObjects = distances.length;
-        final int numTracks = distances[0].length;
+    private void assignTracksAndObjects(DetectionBatch objects, double maxJump, double minGap) {
 
         // Handle simple case first - tracks which have an unambiguous best object
-        int[] assignedTrackToObject = new int[numTracks];
-        int[] assignedObjectToTrack = new int[numObjects];
-        Arrays.fill(assignedTrackToObject, TR_UNASSIGNED);
-        Arrays.fill(assignedObjectToTrack, OBJ_UNASSIGNED);
-        int[] bestTrackToObject = new int[numTracks];
-        int[] bestObjectToTrack = new int[numObjects];
-        simpleAssignments(distances, trackAges, maxJump, assignedTrackToObject, assignedObjectToTrack, bestTrackToObject, bestObjectToTrack);
+        simpleAssignments(maxJump);
 
         // Now solve problems
         // Look for objects which may be artifacts of the process - i.e. very close together, and discard them
-        for (int obj = 0; obj < bestObjectToTrack.length; obj++) {
+        for (int obj = 0; obj < numObjects; obj++) {
             if (bestObjectToTrack[obj] < 0)
                 continue;
             final int bestObj = bestTrackToObject[bestObjectToTrack[obj]];
             if (bestObj != obj) {
                 // Get distance between this object and the one which was assigned to the best track
-                double objDist = objectDistances[obj][bestObj];
+                double objDist = objects.distance(obj, bestObj);
 //                System.out.println("objDist = " + objDist + ", " + obj + "-" + bestObj);
                 if (objDist < minGap) {
                     assignedObjectToTrack[obj] = OBJ_NO_TRACK;
-                    fillRow(distances, obj, Double.MAX_VALUE);
+                    fillRow(obj, Double.MAX_VALUE);
                 }
             }
         }
 
         // Now look for tracks which are close enough to objects. Keep doing it until no more assignments can be made
         //noinspection StatementWithEmptyBody
-        while (simpleAssignments(distances, trackAges, maxJump, assignedTrackToObject, assignedObjectToTrack, bestTrackToObject, bestObjectToTrack) > 0) {
-        }
-
-        // Construct return value
-        int[][] result = new int[2][];
-        result[0] = assignedTrackToObject;
-        // Incredibly painful way to create an array of indices of objects which are unassigned
-        ArrayList<Integer> newObjs = new ArrayList<>();
-        for (int i = 0; i < assignedObjectToTrack.length; i++) {
-            if (assignedObjectToTrack[i] == OBJ_NEW_TRACK)
-                newObjs.add(i);
+        while (simpleAssignments(maxJump) > 0) {
         }
-        result[1] = new int[newObjs.size()];
-        for (int i = 0; i < result[1].length; i++)
-            result[1][i] = newObjs.get(i);
-//        if (newObjs.size() > 0) {
-//            System.out.println("objects which require new tracks: " + Util.join(result[1], ", "));
-//            System.out.println("objectDistances:");
-//            StringBuilder buf = new StringBuilder();
-//            for (int row = 0; row < numObjects; row++) {
-//                for (int col = 0; col < numObjects; col++) {
-//                    buf.append(Util.padLeft(Math.round(objectDistances[row][col]), 8));
-//                }
-//                buf.append("\n");
-//            }
-//            System.out.println(buf);
-//        }
-
-        return result;
     }
 
-    /** Returns an array of distances between detected objects and track predictions.
-     *
-     * @param tracksArr array of existing tracks.
-     * @param detectedObjsArr Array of objects detected in this frame.
-     * @param nullObjectValue value to store in matrix if detected or tracking object is null.
-     * @param square if true, distances are squared.
-     * @return matrix M[di][ti] of distances squared, where di is the detected object index, and ti is the track index.
+    /** Fills the matrix of distances between detected objects and track predictions.
+     * The distance between object di and track ti is stored in {@code distances[di * numTracks + ti]}.
      */
-    private double[][] buildDistanceMatrix(TrackWithEllipse[] tracksArr, MotionDetector.DetectedObject[] detectedObjsArr, double nullObjectValue, boolean square) {
-        // Discrepancy sq matrix
-        final int ndi = detectedObjsArr.length;
-        final int nti = tracksArr.length;
-        double[][] discrepancySq = new double[ndi][nti];
-
-        // Build matrix
-        for (int di = 0; di < ndi; di++) {
-            MotionDetector.DetectedObject detected = detectedObjsArr[di];
-            for(int ti = 0; ti < nti; ti++) {
-                KalmanTrack tracked = tracksArr[ti];
-                double discrepancy = detected == null || tracked == null ? nullObjectValue : tracked.assess(detected.centroid);
-                discrepancySq[di][ti] = (square ? discrepancy * discrepancy : discrepancy);
-            }
+    private void buildDistanceMatrix(DetectionBatch objects) {
+        for (int di = 0; di < numObjects; di++) {
+            final double x = objects.x(di);
+            final double y = objects.y(di);
+            final int row = di * numTracks;
+            for (int ti = 0; ti < numTracks; ti++)
+                distances[row + ti] = tracksArr[ti].assess(x, y);
         }
-        return discrepancySq;
     }
 
-    /** Returns an array of the weighted times that tracks were last detected. */
-    private double[] buildTimesVector(TrackWithEllipse[] tracksArr, double ageWeighting, int frameNumber) {
-        double[] result = new double[tracksArr.length];
-        for(int ti = 0; ti < tracksArr.length; ti++) {
-            KalmanTrack track = tracksArr[ti];
-            result[ti] = ageWeighting * (frameNumber - track.getLastDetectedAt());
-        }
-        return result;
+    /** Fills the vector of the weighted times that tracks were last detected. */
+    private void buildTimesVector(double ageWeighting, int frameNumber) {
+        for (int ti = 0; ti < numTracks; ti++)
+            trackAges[ti] = ageWeighting * (frameNumber - tracksArr[ti].getLastDetectedAt());
     }
 
-    private int simpleAssignments(double[][] distances, double[] trackAges, double maxJump, int[] assignedTrackToObject, int[] assignedObjectToTrack, int[] bestTrackToObject, int[] bestObjectToTrack) {
+    private int simpleAssignments(double maxJump) {
         int successfulAssignments = 0;
 
         // Find the closest object to each track
-        for (int i = 0; i < bestTrackToObject.length; i++)
-            bestTrackToObject[i] = bestObjectForTrack(distances, i);
+        for (int i = 0; i < numTracks; i++)
+            bestTrackToObject[i] = bestObjectForTrack(i);
         // Find the closest track to each object
-        for (int i = 0; i < bestObjectToTrack.length; i++)
-            bestObjectToTrack[i] = bestTrackForObject(distances, trackAges, i, maxJump);
-        for (int tr = 0; tr < bestTrackToObject.length; tr++) {
+        for (int i = 0; i < numObjects; i++)
+            bestObjectToTrack[i] = bestTrackForObject(i, maxJump);
+        for (int tr = 0; tr < numTracks; tr++) {
             final int obj = bestTrackToObject[tr];
             // if it's the best AND it's not too big a jump
-            if (obj >= 0 && bestObjectToTrack[obj] == tr && distances[obj][tr] < maxJump) {
+            if (obj >= 0 && bestObjectToTrack[obj] == tr && distances[obj * numTracks + tr] < maxJump) {
                 assignedTrackToObject[tr] = obj;
                 assignedObjectToTrack[obj] = tr;
                 // Adjust distances so that we don't try to re-assign these tracks or objects
-                fillRow(distances, obj, Double.MAX_VALUE);
-                fillCol(distances, tr, Double.MAX_VALUE);
+                fillRow(obj, Double.MAX_VALUE);
+                fillCol(tr, Double.MAX_VALUE);
 
                 successfulAssignments++;
             }
@@ -343,21 +300,20 @@ public class MultiTracker implements MotionDetector.Filter {
         return successfulAssignments;
     }
 
-    private void fillCol(double[][] matrix, int col, double value) {
-        for (int row = 0; row < matrix.length; row++)
-            matrix[row][col] = value;
+    private void fillCol(int col, double value) {
+        for (int row = 0; row < numObjects; row++)
+            distances[row * numTracks + col] = value;
     }
 
-    private void fillRow(double[][] matrix, int row, double value) {
-        for (int col = 0; col < matrix[row].length; col++)
-            matrix[row][col] = value;
+    private void fillRow(int row, double value) {
+        Arrays.fill(distances, row * numTracks, (row + 1) * numTracks, value);
     }
 
-    private int bestObjectForTrack(double[][] distances, int col) {
+    private int bestObjectForTrack(int col) {
         int minRow = -1;
         double minValue = Double.MAX_VALUE;
-        for (int row = 0; row < distances.length; row++) {
-            final double d = distances[row][col];
+        for (int row = 0; row < numObjects; row++) {
+            final double d = distances[row * numTracks + col];
             if (d < minValue) {
                 minValue = d;
                 minRow = row;
@@ -366,12 +322,14 @@ public class MultiTracker implements MotionDetector.Filter {
         return minRow;
     }
 
-    private int bestTrackForObject(double[][] distances, double[] trackAges, int row, double maxJump) {
+    private int bestTrackForObject(int row, double maxJump) {
         int minCol = -1;
         double minValue = Double.MAX_VALUE;
-        for (int ti = 0; ti < distances[row].length; ti++) {
-            final double d = distances[row][ti] + trackAges[ti];
-            if (distances[row][ti] < maxJump && d < minValue) {
+        final int offset = row * numTracks;
+        for (int ti = 0; ti < numTracks; ti++) {
+            final double distance = distances[offset + ti];
+            final double d = distance + trackAges[ti];
+            if (distance < maxJump && d < minValue) {
                 minValue = d;
                 minCol = ti;
             }
@@ -379,6 +337,24 @@ public class MultiTracker implements MotionDetector.Filter {
         return minCol;
     }
 
+    /** Grows the working arrays if necessary to handle numTracks tracks and numObjects objects. */
+    private void ensureCapacity() {
+        if (tracksArr.length < numTracks) {
+            final int n = Math.max(numTracks, 2 * tracksArr.length);
+            tracksArr = new TrackWithEllipse[n];
+            trackAges = new double[n];
+            assignedTrackToObject = new int[n];
+            bestTrackToObject = new int[n];
+        }
+        if (assignedObjectToTrack.length < numObjects) {
+            final int n = Math.max(numObjects, 2 * assignedObjectToTrack.length);
+            assignedObjectToTrack = new int[n];
+            bestObjectToTrack = new int[n];
+        }
+        if (distances.length < numTracks * numObjects)
+            distances = new double[Math.max(numTracks * numObjects, 2 * distances.length)];
+    }
+
     // ================================================================================
     // Testing
 
@@ -386,12 +362,12 @@ public class MultiTracker implements MotionDetector.Filter {
         // load the native OpenCV library
         System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
 
-        MultiTracker mt = new MultiTracker(new KalmanTrack.Cfg("fast"), 0, 0);
+        MultiTracker mt = new MultiTracker(new KalmanTrack.Cfg("fast"), 0, 0, false);
         // Invent some objects
-        List<MotionDetector.DetectedObject> objects = new ArrayList<>();
-        objects.add(new MotionDetector.DetectedObject(new Point(0, 0)));
-        objects.add(new MotionDetector.DetectedObject(new Point(2, 1)));
-        objects.add(new MotionDetector.DetectedObject(new Point(100, 100)));
+        DetectionBatch objects = new DetectionBatch();
+        objects.add(0, 0, 0);
+        objects.add(2, 1, 0);
+        objects.add(100, 100, 0);
 
         List<TrackWithEllipse> tracks = new ArrayList<>();
         Params params = new Params();
@@ -399,9 +375,9 @@ public class MultiTracker implements MotionDetector.Filter {
         tracks = mt.trackMulti(objects, tracks, params, true, size, 100);
         System.out.println("tracks = " + tracks);
 
-        objects = new ArrayList<>();
-        objects.add(new MotionDetector.DetectedObject(new Point(0, 0)));
-        objects.add(new MotionDetector.DetectedObject(new Point(98, 98)));
+        objects.clear();
+        objects.add(0, 0, 0);
+        objects.add(98, 98, 0);
         tracks = mt.trackMulti(objects, tracks, params, true, size, 110);
         System.out.println("tracks = " + tracks);
 
@@ -10,88 +10,211 @@ import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
 import org.opencv.imgproc.Imgproc;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 import static com.jim.util.Util.idToRGB;
 import static org.opencv.core.CvType.CV_32FC2;
 import static org.opencv.imgproc.Imgproc.goodFeaturesToTrack;
+import static org.opencv.video.Video.OPTFLOW_USE_INITIAL_FLOW;
 import static org.opencv.video.Video.calcOpticalFlowPyrLK;
 
 /**
  * Created by jim_m on 10-Jun-17.
+ *
+ * All buffers are allocated once and reused, so steady-state processing of a frame
+ * doesn't allocate any new matrices. The image pyramid for each frame is built once into
+ * a pair of reused pyramids, then reused as the "old" pyramid when the next frame is processed.
  */
 public class OpticalFlowDetector implements MotionDetector.Detector {
-    private MatOfPoint2f oldFeatures;
+    // Algorithm parameters
+    private static final Size WIN_SIZE = new Size(15, 15);
+    private static final int MAX_LEVEL = 2;
+    // Same values as the calcOpticalFlowPyrLK defaults
+    private static final TermCriteria TERM_CRITERIA = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, 30, 0.01);
+    private static final double MIN_EIG_THRESHOLD = 1e-4;
+    private static final int MAX_FEATURES = 500;
+
+    // Features being tracked, in old frame coordinates
+    private final MatOfPoint2f oldFeatures = new MatOfPoint2f();
+    // Old features scaled to the current pyramid level
+    private final MatOfPoint2f levelFeatures = new MatOfPoint2f();
+    private final MatOfPoint2f newFeatures = new MatOfPoint2f();
+    private final MatOfPoint corners = new MatOfPoint();
+    private final MatOfByte status = new MatOfByte();
+    private final MatOfFloat err = new MatOfFloat();
+    // Image pyramids, swapped after each frame. Level 0 is the frame itself
+    private Mat[] oldPyramid = newPyramid();
+    private Mat[] newPyramid = newPyramid();
+    private int oldLevels;
     private Mat oldFrame;
     private Mat feedbackMask;
+    // Java copies of feature coordinates, grown as required
+    private float[] oldCoords = new float[0];
+    private float[] newCoords = new float[0];
+    private byte[] statusArr = new byte[0];
+    private boolean haveFeatures = false;
+    // Optional grouping of flow vectors into objects
+    private FlowClusterer clusterer;
+    // Optional incremental replenishment of features
+    private FeatureGrid grid;
+
+    /** If {@code grid} is not null, lost features are replaced every frame by detecting new features
+     * in grid cells which are below budget. Otherwise, all features are re-detected every 5th frame. */
+    public void setFeatureGrid(FeatureGrid grid) {
+        this.grid = grid;
+    }
 
+    /** If {@code clusterer} is not null, flow vectors are clustered into objects,
+     * otherwise each tracked feature is treated as an object. */
+    public void setClusterer(FlowClusterer clusterer) {
+        this.clusterer = clusterer;
+    }
+
+    /** Detects objects corresponding to features which were successfully tracked into this frame. */
     @Override
-    public ArrayList<MotionDetector.DetectedObject> detect(int frameIndex, Mat greyFrame, Mat colourFrame, Params params, Mat feedbackImage) {
-        ArrayList<MotionDetector.DetectedObject> result = new ArrayList<>();
+    public void detect(int frameIndex, Mat greyFrame, Mat colourFrame, Params params, Mat feedbackImage, DetectionBatch result) {
+        result.clear();
+
+        if (feedbackMask == null)
+            feedbackMask =  new Mat(feedbackImage.size(), feedbackImage.type(), new Scalar(0));
 
-        // Ensure we have the features being tracked
-        boolean needFeatures = oldFeatures == null || frameIndex % 5 == 0;
+        // Ensure we have the features being tracked (unless they are maintained by the grid)
+        boolean needFeatures = grid == null && (!haveFeatures || frameIndex % 5 == 0);
         if (needFeatures) {
             // Shi-Tomasi feature detection
             // Assume feature of interest is one of the best in the image
-            MatOfPoint features = new MatOfPoint();
-            goodFeaturesToTrack(oldFrame == null ? greyFrame : oldFrame, features, 500, 0.3, 5);
+            goodFeaturesToTrack(oldFrame == null ? greyFrame : oldFrame, corners, MAX_FEATURES, 0.3, 5);
             // Convert result type
-            oldFeatures = new MatOfPoint2f();
-            features.convertTo(oldFeatures, CV_32FC2);
-
-            if (feedbackMask == null)
-                feedbackMask =  new Mat(feedbackImage.size(), feedbackImage.type(), new Scalar(0));
+            corners.convertTo(oldFeatures, CV_32FC2);
+            haveFeatures = true;
         }
 
+        // Build the pyramid for this frame. It is reused as the old pyramid for the next frame
+        int levels = buildPyramid(greyFrame, newPyramid);
+
         // Now track features into this frame
-        if (oldFrame != null) {
-            // Algorithm parameters
-            Size winSize = new Size(15, 15);
-            int maxLevel = 2;
-            // Outputs
-            MatOfByte status = new MatOfByte();
-            MatOfFloat err = new MatOfFloat();
-            MatOfPoint2f newFeatures = new MatOfPoint2f();
-            // Calculate
-            calcOpticalFlowPyrLK(oldFrame, greyFrame, oldFeatures, newFeatures, status, err, winSize, maxLevel);
-//            TermCriteria termCriteria = new TermCriteria(TermCriteria.EPS | TermCriteria.COUNT, 10, 0.03);
-//            calcOpticalFlowPyrLK(oldFrame, newFrame, oldFeatures, newFeatures, status, err, winSize, maxLevel, termCriteria, 0, 1);
+        int numFeatures = 0;
+        if (oldFrame != null && !oldFeatures.empty()) {
+            trackFeatures(Math.min(levels, oldLevels));
 
             // Only use "good" points
-            byte[] sta = status.toArray();
-            Point[] olda = oldFeatures.toArray();
-            Point[] newa = newFeatures.toArray();
-//            List<Point> goodOld = new ArrayList<>();
-            List<Point> goodNew = new ArrayList<>();
-            for (int i = 0; i < sta.length; i++) {
-                if (sta[i] == 1) {
-//                    goodOld.add(olda[i]);
-                    goodNew.add(newa[i]);
-                    result.add(new MotionDetector.DetectedObject(newa[i]));
-
+            final int n = (int) oldFeatures.total();
+            oldCoords = ensureCapacity(oldCoords, 2 * n);
+            newCoords = ensureCapacity(newCoords, 2 * n);
+            if (statusArr.length < n)
+                statusArr = new byte[n];
+            oldFeatures.get(0, 0, oldCoords);
+            newFeatures.get(0, 0, newCoords);
+            status.get(0, 0, statusArr);
+            int good = 0;
+            for (int i = 0; i < n; i++) {
+                if (statusArr[i] == 1) {
+                    if (clusterer == null)
+                        result.add(newCoords[2 * i], newCoords[2 * i + 1], 0);
                     if (params.grParams.showFlow)
-                        Imgproc.line(feedbackMask, olda[i], newa[i], idToRGB(i));
+                        Imgproc.line(feedbackMask, new Point(oldCoords[2 * i], oldCoords[2 * i + 1]),
+                                new Point(newCoords[2 * i], newCoords[2 * i + 1]), idToRGB(i));
+
+                    // Compact good points into the start of the arrays
+                    oldCoords[2 * good] = oldCoords[2 * i];
+                    oldCoords[2 * good + 1] = oldCoords[2 * i + 1];
+                    newCoords[2 * good] = newCoords[2 * i];
+                    newCoords[2 * good + 1] = newCoords[2 * i + 1];
+                    good++;
                 }
             }
             if (params.grParams.showFlow)
                 Core.add(feedbackMask, feedbackImage, feedbackImage);
 
-            // Save new good features as old features for next iteration
-            oldFeatures.fromList(goodNew);
+            // Group moving features into objects
+            if (clusterer != null)
+                clusterer.cluster(oldCoords, newCoords, good, result, params.grParams.showEllipse, feedbackImage);
+
+            numFeatures = good;
         }
 
-        // New frame becomes the old frame for the next iteration
-        oldFrame = greyFrame.clone();
+        // Top up features in grid cells which have lost them
+        if (grid != null) {
+            newCoords = ensureCapacity(newCoords, 2 * (numFeatures + grid.capacity()));
+            numFeatures = grid.replenish(greyFrame, params.trParams.getTransformedMask(), newCoords, numFeatures);
+        }
 
-        return result;
+        // Save new good features as old features for next iteration (only the first numFeatures values fit)
+        if (grid != null || oldFrame != null) {
+            if (numFeatures != oldFeatures.total())
+                oldFeatures.alloc(numFeatures);
+            if (numFeatures > 0)
+                oldFeatures.put(0, 0, newCoords);
+        }
+
+        // New frame becomes the old frame for the next iteration
+        oldFrame = greyFrame;
+        Mat[] tmp = oldPyramid;
+        oldPyramid = newPyramid;
+        newPyramid = tmp;
+        oldLevels = levels;
     }
 
     @Override
     public String toString() {
-        return "Sparse optical flow detector using Lucas-Kanade method with pyramids";
+        return "Sparse optical flow detector using Lucas-Kanade method with pyramids" +
+                (grid == null ? "" : ", features maintained on " + grid) +
+                (clusterer == null ? "" : ", clustering flow (" + clusterer + ")");
+    }
+
+    // =================================================================
+    // Private methods
+
+    /** Tracks old features into the new frame, one pyramid level at a time from coarse to fine.
+     * The Java API to calcOpticalFlowPyrLK can't be passed pre-built pyramids,
+     * so each level is passed as a single image, using the result from the coarser level
+     * as the initial estimate. Results are left in {@link #newFeatures} and {@link #status}.
+     */
+    private void trackFeatures(int maxLevel) {
+        for (int level = maxLevel; level >= 0; level--) {
+            final double scale = 1.0 / (1 << level);
+            oldFeatures.convertTo(levelFeatures, -1, scale);
+            if (level == maxLevel)
+                // Initial estimate is no movement
+                levelFeatures.copyTo(newFeatures);
+            else
+                // Scale estimate from coarser level
+                newFeatures.convertTo(newFeatures, -1, 2);
+            calcOpticalFlowPyrLK(oldPyramid[level], newPyramid[level], levelFeatures, newFeatures, status, err,
+                    WIN_SIZE, 0, TERM_CRITERIA, OPTFLOW_USE_INITIAL_FLOW, MIN_EIG_THRESHOLD);
+        }
+    }
+
+    /** Returns {@code a}, or a larger copy of it if it has fewer than {@code size} elements. */
+    private static float[] ensureCapacity(float[] a, int size) {
+        return a.length >= size ? a : Arrays.copyOf(a, Math.max(size, 2 * a.length));
+    }
+
+    private static Mat[] newPyramid() {
+        Mat[] pyramid = new Mat[MAX_LEVEL + 1];
+        for (int i = 1; i < pyramid.length; i++)
+            pyramid[i] = new Mat();
+        return pyramid;
+    }
+
+    /** Builds the image pyramid for a frame into the reused matrices of {@code pyramid}.
+     * Like {@code Video.buildOpticalFlowPyramid}, levels smaller than the search window aren't built.
+     * The Java API to buildOpticalFlowPyramid always returns newly allocated matrices, so it isn't used.
+     * @return Index of the coarsest level that was built.
+     */
+    private static int buildPyramid(Mat frame, Mat[] pyramid) {
+        pyramid[0] = frame;
+        int level = 0;
+        while (level < MAX_LEVEL) {
+            final Mat finer = pyramid[level];
+            if ((finer.cols() + 1) / 2 <= WIN_SIZE.width || (finer.rows() + 1) / 2 <= WIN_SIZE.height)
+                break;
+            level++;
+            Imgproc.pyrDown(finer, pyramid[level]);
+        }
+        return level;
     }
 }
@@ -0,0 +1,43 @@
+package com.jim.tracking;
+
+import org.opencv.core.Size;
+
+/**
+ * Converts positions from pixels to the units written to output files. The units are defined either by
+ * a scale (pixels per unit), or by the real world width or height of the video frame. By default, output is in pixels.
+ */
+public class OutputUnits {
+    // For converting from pixels to user coordinates - size of frame in user units
+    private double userUnitsWidth = 0;
+    private double userUnitsHeight = 0;
+    @SuppressWarnings("FieldCanBeLocal")
+    private String name;
+    private double scale;
+
+    /** Sets the name of the spatial units. The value is not currently used. */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public void setScale(double scale) {
+        this.scale = scale;
+    }
+
+    /** Defines the video scale based on real world width of the video frame. */
+    public void setUserUnitsWidth(double userUnitsWidth) {
+        this.userUnitsWidth = userUnitsWidth;
+    }
+
+    /** Defines the video scale based on real world height of the video frame. */
+    public void setUserUnitsHeight(double userUnitsHeight) {
+        this.userUnitsHeight = userUnitsHeight;
+    }
+
+    /** Returns the factor which converts pixels to output units in a frame of the specified size. */
+    public double getScaleFactor(Size frameSize) {
+        return scale > 0 ? 1 / scale :
+                userUnitsWidth > 0 ? userUnitsWidth / frameSize.width :
+                        userUnitsHeight > 0 ? userUnitsHeight / frameSize.height :
+                                1;
+    }
+}
@@ -0,0 +1,232 @@
+package com.jim.tracking;
+
+import com.jim.util.LongIntMap;
+
+import java.util.Arrays;
+
+/**
+ * Holds the rows of new tracks until they are confirmed, i.e. until they have moved far enough, lasted long
+ * enough and have enough points. Tracks which are retired before they are confirmed are discarded, so the
+ * short noise tracks caused by vibration and lighting changes are never written. So that tracks which never
+ * retire, such as stationary noise, can't hold an unlimited number of rows, a track which isn't confirmed
+ * within a maximum number of rows is rejected: its rows are discarded, and so are any later rows.
+ *
+ * Rows are stored in primitive arrays which are reused once a track is confirmed or discarded.
+ */
+class PendingTracks {
+    private static final int INITIAL_ROWS = 16;
+
+    private final double minDisplacement;
+    private final double minDuration;
+    private final int minPoints;
+    private final int maxRows;
+
+    // Track ID to slot, for pending tracks
+    private final LongIntMap slots = new LongIntMap();
+    // IDs of confirmed tracks
+    private final LongIntMap confirmed = new LongIntMap();
+    private int numSlots = 0;
+    private int[] freeSlots = new int[0];
+    private int numFree = 0;
+
+    // Per slot values
+    private long[] trackId = new long[0];
+    private int[] lastSeen = new int[0];
+    private double[] maxDisplacement = new double[0];
+    private int[] rows = new int[0];
+    private boolean[] rejected = new boolean[0];
+    // Per slot row buffers
+    private int[][] frame = new int[0][];
+    private double[][] time = new double[0][];
+    private double[][] x = new double[0][];
+    private double[][] y = new double[0][];
+    private boolean[][] valueChanged = new boolean[0][];
+
+    // Statistics
+    private long tracksDropped;
+    private long rowsDropped;
+    private long tracksRejected;
+
+    /**
+     * Criteria which are 0 are ignored.
+     *
+     * @param minDisplacement Minimum distance from the start of a track, in output units.
+     * @param minDuration Minimum duration of a track in seconds.
+     * @param minPoints Minimum number of rows in a track.
+     * @param maxRows Maximum number of rows held for a track. Tracks which aren't confirmed by then are rejected.
+     */
+    PendingTracks(double minDisplacement, double minDuration, int minPoints, int maxRows) {
+        this.minDisplacement = minDisplacement;
+        this.minDuration = minDuration;
+        this.minPoints = minPoints;
+        this.maxRows = maxRows;
+    }
+
+    boolean isConfirmed(long id) {
+        return confirmed.containsKey(id);
+    }
+
+    /** Records that a track is present in a frame. Must be called after any rows for the frame are added. */
+    void seen(long id, int frameIndex) {
+        final int s = slots.get(id);
+        if (s != LongIntMap.NO_VALUE)
+            lastSeen[s] = frameIndex;
+    }
+
+    /**
+     * Buffers a row for an unconfirmed track, or discards it if the track has been rejected.
+     *
+     * @return The slot of the track if the track is now confirmed, otherwise -1.
+     *         If the track is confirmed, its rows should be written, then {@link #confirm(int)} called.
+     */
+    int add(long id, int frame, double time, double x, double y, boolean valueChanged) {
+        int s = slots.get(id);
+        if (s == LongIntMap.NO_VALUE)
+            s = allocate(id);
+        if (rejected[s]) {
+            rowsDropped++;
+            return -1;
+        }
+        final int n = rows[s];
+        if (n == this.frame[s].length) {
+            final int capacity = 2 * n;
+            this.frame[s] = Arrays.copyOf(this.frame[s], capacity);
+            this.time[s] = Arrays.copyOf(this.time[s], capacity);
+            this.x[s] = Arrays.copyOf(this.x[s], capacity);
+            this.y[s] = Arrays.copyOf(this.y[s], capacity);
+            this.valueChanged[s] = Arrays.copyOf(this.valueChanged[s], capacity);
+        }
+        this.frame[s][n] = frame;
+        this.time[s][n] = time;
+        this.x[s][n] = x;
+        this.y[s][n] = y;
+        this.valueChanged[s][n] = valueChanged;
+        rows[s] = n + 1;
+        maxDisplacement[s] = Math.max(maxDisplacement[s], Math.hypot(x - this.x[s][0], y - this.y[s][0]));
+
+        final boolean ok = maxDisplacement[s] >= minDisplacement &&
+                time - this.time[s][0] >= minDuration &&
+                rows[s] >= minPoints;
+        if (!ok && rows[s] >= maxRows)
+            reject(s);
+        return ok ? s : -1;
+    }
+
+    int rows(int slot) {
+        return rows[slot];
+    }
+
+    int frame(int slot, int row) {
+        return frame[slot][row];
+    }
+
+    double time(int slot, int row) {
+        return time[slot][row];
+    }
+
+    double x(int slot, int row) {
+        return x[slot][row];
+    }
+
+    double y(int slot, int row) {
+        return y[slot][row];
+    }
+
+    boolean isValueChanged(int slot, int row) {
+        return valueChanged[slot][row];
+    }
+
+    /** Marks the track in a slot as confirmed, and frees the slot. */
+    void confirm(int slot) {
+        confirmed.put(trackId[slot], 1);
+        free(slot);
+    }
+
+    /** Discards pending tracks which weren't present in the specified frame, and forgets rejected tracks. */
+    void dropRetired(int frameIndex) {
+        for (int s = 0; s < numSlots; s++) {
+            if (trackId[s] != -1 && lastSeen[s] != frameIndex)
+                drop(s);
+        }
+    }
+
+    /** Discards all pending tracks. */
+    void dropAll() {
+        for (int s = 0; s < numSlots; s++) {
+            if (trackId[s] != -1)
+                drop(s);
+        }
+    }
+
+    /** Returns a description of the number of tracks and rows which were discarded. */
+    String getStatistics() {
+        return "Discarded " + tracksDropped + " unconfirmed track" + (tracksDropped == 1 ? "" : "s") +
+                " (" + rowsDropped + " row" + (rowsDropped == 1 ? "" : "s") + "), including " + tracksRejected +
+                " which weren't confirmed within " + maxRows + " rows, wrote " + confirmed.size() +
+                " confirmed track" + (confirmed.size() == 1 ? "" : "s");
+    }
+
+    // =================================================================
+    // Private methods
+
+    private void drop(int s) {
+        // Rejected tracks have already been counted
+        if (!rejected[s]) {
+            tracksDropped++;
+            rowsDropped += rows[s];
+        }
+        free(s);
+    }
+
+    /** Discards the rows of a track, but keeps its slot until it retires, so that later rows are also discarded. */
+    private void reject(int s) {
+        tracksDropped++;
+        tracksRejected++;
+        rowsDropped += rows[s];
+        rows[s] = 0;
+        rejected[s] = true;
+    }
+
+    private int allocate(long id) {
+        final int s;
+        if (numFree > 0) {
+            s = freeSlots[--numFree];
+        } else {
+            if (numSlots == trackId.length)
+                grow(Math.max(16, 2 * numSlots));
+            s = numSlots++;
+            frame[s] = new int[INITIAL_ROWS];
+            time[s] = new double[INITIAL_ROWS];
+            x[s] = new double[INITIAL_ROWS];
+            y[s] = new double[INITIAL_ROWS];
+            valueChanged[s] = new boolean[INITIAL_ROWS];
+        }
+        trackId[s] = id;
+        maxDisplacement[s] = 0;
+        rejected[s] = false;
+        slots.put(id, s);
+        return s;
+    }
+
+    private void free(int s) {
+        slots.remove(trackId[s]);
+        // Mark the slot as unused
+        trackId[s] = -1;
+        rows[s] = 0;
+        freeSlots[numFree++] = s;
+    }
+
+    private void grow(int n) {
+        freeSlots = Arrays.copyOf(freeSlots, n);
+        trackId = Arrays.copyOf(trackId, n);
+        lastSeen = Arrays.copyOf(lastSeen, n);
+        maxDisplacement = Arrays.copyOf(maxDisplacement, n);
+        rows = Arrays.copyOf(rows, n);
+        rejected = Arrays.copyOf(rejected, n);
+        frame = Arrays.copyOf(frame, n);
+        time = Arrays.copyOf(time, n);
+        x = Arrays.copyOf(x, n);
+        y = Arrays.copyOf(y, n);
+        valueChanged = Arrays.copyOf(valueChanged, n);
+    }
+}
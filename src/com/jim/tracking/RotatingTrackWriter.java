@@ -0,0 +1,155 @@
+package com.jim.tracking;
+
+import com.jim.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes tracks to a sequence of numbered files, starting a new file (part) every so many frames, minutes
+ * of video time or megabytes. Each part is a complete track file, with headers, comments, and a final row
+ * with track ID -1 recording the last frame in the part and the frame size, so closed parts can be analysed
+ * while tracking continues. Track IDs are the same in all parts.
+ *
+ * Files are rotated between frames. Rows of tracks which are held back until they are confirmed
+ * (see {@link #setConfirmation}) are written to the current part, so may belong to frames in a previous part.
+ */
+public class RotatingTrackWriter extends TrackWriter {
+
+    /** Units of the size of a part. */
+    public enum Unit {
+        FRAMES, MINUTES, MB
+    }
+
+    /** Opens a part. */
+    public interface PartOpener {
+        TrackWriter open(String fileName) throws IOException;
+    }
+
+    private final String fileName;
+    private final Unit unit;
+    private final double partSize;
+    private final PartOpener opener;
+    // Comments are written to every part
+    private final List<String> comments = new ArrayList<>();
+    private boolean indexed;
+    private int partNumber;
+    private TrackWriter part;
+    // First frame and its time in the current part, or -1 before the first frame
+    private int partStartFrame = -1;
+    private double partStartTime;
+
+    /**
+     * @param fileName Name of the track file. Parts are named by inserting a part number before the extension.
+     * @param partSize Size of each part, in {@code unit}s.
+     * @param opener Opens the track writer for a part.
+     */
+    public RotatingTrackWriter(String fileName, Unit unit, double partSize, PartOpener opener, boolean writeAllFrames, int fps) throws IOException {
+        super(writeAllFrames, fps);
+        this.fileName = fileName;
+        this.unit = unit;
+        this.partSize = partSize;
+        this.opener = opener;
+        part = opener.open(partName(fileName, ++partNumber));
+    }
+
+    @Override
+    public String toString() {
+        return Util.getFirstNamedAncestor(getClass()).getSimpleName() +
+                " - writes " + part + ", starting a new file every " + partSize + " " + unit.toString().toLowerCase();
+    }
+
+    /** Given the name of a track file, returns the name of a part. Parts are numbered from 1. */
+    public static String partName(String fileName, int partNumber) {
+        String base = fileName;
+        String extension = "";
+        if (TrackCSVWriter.isCompressed(base)) {
+            extension = base.substring(base.lastIndexOf('.'));
+            base = base.substring(0, base.length() - extension.length());
+        }
+        final int dot = base.lastIndexOf('.');
+        if (dot > base.lastIndexOf(File.separatorChar) && dot > base.lastIndexOf('/')) {
+            extension = base.substring(dot) + extension;
+            base = base.substring(0, dot);
+        }
+        return String.format("%s-%04d%s", base, partNumber, extension);
+    }
+
+    /** Writes an index alongside each part. The name of the index file is derived from the part name. */
+    @Override
+    public void setIndexFile(String indexFile) {
+        indexed = indexFile != null;
+        super.setIndexFile(indexed ? TrackIndex.deriveName(partName(fileName, partNumber)) : null);
+    }
+
+    @Override
+    public void writeComment(String comment) throws IOException {
+        comments.add(comment);
+        part.writeComment(comment);
+    }
+
+    @Override
+    protected void writeTracks(FrameSnapshot frame, int frameIndex, double fps) throws IOException {
+        // Rows are written for the previous frame index
+        final int frameNumber = frameIndex - 1;
+        final double time = frameNumber / fps;
+        if (partStartFrame < 0) {
+            partStartFrame = frameNumber;
+            partStartTime = time;
+        } else if (isFull(frameNumber, time)) {
+            nextPart(frameIndex - 1, fps);
+            partStartFrame = frameNumber;
+            partStartTime = time;
+        }
+        super.writeTracks(frame, frameIndex, fps);
+    }
+
+    @Override
+    protected void writeRow(int frame, double time, long trackId, double x, double y, boolean valueChanged) throws IOException {
+        part.writeRow(frame, time, trackId, x, y, valueChanged);
+    }
+
+    @Override
+    protected long getOffset() {
+        return part.getOffset();
+    }
+
+    @Override
+    protected long getSize() {
+        return part.getSize();
+    }
+
+    @Override
+    protected void close() throws IOException {
+        part.close();
+    }
+
+    // =================================================================
+    // Private methods
+
+    private boolean isFull(int frameNumber, double time) {
+        switch (unit) {
+            case FRAMES:
+                return frameNumber - partStartFrame >= partSize;
+            case MINUTES:
+                return time - partStartTime >= partSize * 60;
+            default:
+                return part.getSize() >= partSize * 1024 * 1024;
+        }
+    }
+
+    /** Finishes the current part and starts the next one. */
+    private void nextPart(int lastFrameIndex, double fps) throws IOException {
+        finishFile(lastFrameIndex, fps);
+        part.close();
+
+        final String partFile = partName(fileName, ++partNumber);
+        if (indexed)
+            restartIndex(TrackIndex.deriveName(partFile));
+        part = opener.open(partFile);
+        for (String comment : comments)
+            part.writeComment(comment);
+    }
+}
@@ -0,0 +1,94 @@
+package com.jim.tracking;
+
+import com.jim.util.LongIntMap;
+
+import java.util.Arrays;
+
+/**
+ * The last position of each track which wasn't written because it didn't change, so that the last frame
+ * at a position can be written once the track moves. Positions are held in arrays indexed by slot, and
+ * slots are reused, so recording a position doesn't allocate memory.
+ */
+class SkippedPositions {
+    // Track ID to slot
+    private final LongIntMap slots = new LongIntMap();
+    private int numSlots = 0;
+    private int[] freeSlots = new int[0];
+    private int numFree = 0;
+
+    // Per slot values
+    private long[] trackId = new long[0];
+    private int[] lastSeen = new int[0];
+    private double[] x = new double[0];
+    private double[] y = new double[0];
+
+    /** Records the position of a track in a frame where it wasn't written. */
+    void put(long id, int frameIndex, double x, double y) {
+        int s = slots.get(id);
+        if (s == LongIntMap.NO_VALUE)
+            s = allocate(id);
+        lastSeen[s] = frameIndex;
+        this.x[s] = x;
+        this.y[s] = y;
+    }
+
+    /** Returns the slot holding the skipped position of a track, or -1 if there isn't one. */
+    int get(long id) {
+        final int s = slots.get(id);
+        return s == LongIntMap.NO_VALUE ? -1 : s;
+    }
+
+    double x(int slot) {
+        return x[slot];
+    }
+
+    double y(int slot) {
+        return y[slot];
+    }
+
+    /** Forgets the skipped position in a slot, once it has been written. */
+    void remove(int slot) {
+        free(slot);
+    }
+
+    /** Forgets the positions of tracks which weren't present in the specified frame, i.e. tracks which were
+     * retired while stationary. The last frame of a stopped track isn't written. */
+    void forgetRetired(int frameIndex) {
+        for (int s = 0; s < numSlots; s++) {
+            if (trackId[s] != -1 && lastSeen[s] != frameIndex)
+                free(s);
+        }
+    }
+
+    // =================================================================
+    // Private methods
+
+    private int allocate(long id) {
+        final int s;
+        if (numFree > 0) {
+            s = freeSlots[--numFree];
+        } else {
+            if (numSlots == trackId.length)
+                grow(Math.max(16, 2 * numSlots));
+            s = numSlots++;
+        }
+        trackId[s] = id;
+        slots.put(id, s);
+        return s;
+    }
+
+    private void free(int s) {
+        slots.remove(trackId[s]);
+        // Mark the slot as unused
+        trackId[s] = -1;
+        freeSlots[numFree++] = s;
+    }
+
+    private void grow(int n) {
+        freeSlots = Arrays.copyOf(freeSlots, n);
+        trackId = Arrays.copyOf(trackId, n);
+        lastSeen = Arrays.copyOf(lastSeen, n);
+        x = Arrays.copyOf(x, n);
+        y = Arrays.copyOf(y, n);
+    }
+}
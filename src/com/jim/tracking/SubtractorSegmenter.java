@@ -0,0 +1,110 @@
+package com.jim.tracking;
+
+import com.jim.Params;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.BackgroundSubtractor;
+
+/**
+ * Base class for foreground segmenters which use an OpenCV background subtractor.
+ *
+ * To reduce cost, the subtractor can be applied to a downscaled and/or grey copy of each frame
+ * (the resulting mask is scaled back up to the frame size), and the background model can be updated
+ * every {@code updateInterval} frames rather than every frame. Frames in between are classified
+ * using the existing model.
+ */
+public abstract class SubtractorSegmenter implements ForegroundSegmenter {
+    protected final BackgroundSubtractor subtractor;
+    private final int history;
+    private final double scale;
+    private final boolean grey;
+    private final int updateInterval;
+    // Learning rate for classifying without updating the model. KNN still adapts with a rate of 0
+    // (its update period is derived from the rate), so use a rate too small to have any effect
+    private static final double NO_LEARNING = 1e-9;
+    private long frameCount = 0;
+    // If true, the model is replaced by the next frame
+    private boolean relearn = false;
+
+    private final Mat small = new Mat();
+    private final Mat smallMask = new Mat();
+    private final Mat fgMask = new Mat();
+
+    /**
+     * @param subtractor The background subtractor.
+     * @param history Length of the subtractor history, used to derive the learning rate.
+     * @param scale Frames are resized by this factor before being passed to the subtractor (1 means don't resize).
+     * @param grey If true, the grey frame rather than the colour frame is passed to the subtractor.
+     * @param updateInterval The background model is only updated every {@code updateInterval} frames.
+     */
+    protected SubtractorSegmenter(BackgroundSubtractor subtractor, int history, double scale, boolean grey, int updateInterval) {
+        if (scale <= 0 || scale > 1)
+            throw new IllegalArgumentException("Segmenter scale must be > 0 and <= 1, found " + scale);
+        if (updateInterval < 1)
+            throw new IllegalArgumentException("Segmenter update interval must be > 0, found " + updateInterval);
+        this.subtractor = subtractor;
+        this.history = history;
+        this.scale = scale;
+        this.grey = grey;
+        this.updateInterval = updateInterval;
+    }
+
+    @Override
+    public Mat segment(int frameIndex, Mat greyFrame, Mat colourFrame, Params params) {
+        final Mat mask = apply(greyFrame, colourFrame, learningRate());
+        frameCount++;
+        return mask;
+    }
+
+    /** Classifies the frame using the existing model, which isn't updated. */
+    @Override
+    public Mat classify(int frameIndex, Mat greyFrame, Mat colourFrame, Params params) {
+        return apply(greyFrame, colourFrame, NO_LEARNING);
+    }
+
+    /** The next frame entirely replaces the learned model. */
+    @Override
+    public void reset() {
+        relearn = true;
+    }
+
+    /** Returns the options which follow the subtractor-specific options in the segmenter description. */
+    @Override
+    public String toString() {
+        return scale + ":" + grey + ":" + updateInterval;
+    }
+
+    // =================================================================
+    // Private methods
+
+    private Mat apply(Mat greyFrame, Mat colourFrame, double learningRate) {
+        Mat input = grey ? greyFrame : colourFrame;
+        if (scale != 1) {
+            Imgproc.resize(input, small, new Size(), scale, scale, Imgproc.INTER_AREA);
+            input = small;
+        }
+
+        subtractor.apply(input, scale != 1 ? smallMask : fgMask, learningRate);
+
+        if (scale != 1)
+            Imgproc.resize(smallMask, fgMask, greyFrame.size(), 0, 0, Imgproc.INTER_NEAREST);
+        return fgMask;
+    }
+
+    /** Returns the learning rate to pass to the subtractor for the current frame. */
+    private double learningRate() {
+        if (relearn) {
+            relearn = false;
+            return 1;
+        }
+        // Let OpenCV choose when updating every frame
+        if (updateInterval == 1)
+            return -1;
+        if (frameCount % updateInterval != 0)
+            // Classify only, don't update the model
+            return NO_LEARNING;
+        // Same as OpenCV's automatic rate, but each update stands in for updateInterval frames
+        return Math.min(1, updateInterval / Math.min(2.0 * (frameCount + 1), history));
+    }
+}
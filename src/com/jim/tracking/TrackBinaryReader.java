@@ -0,0 +1,271 @@
+package com.jim.tracking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Reads a file written by {@link TrackBinaryWriter}.
+ *
+ * Chunks are memory mapped, and columns are returned as buffers which are views of the mapped file,
+ * so no parsing is required. Chunk statistics can be used to skip chunks which aren't of interest,
+ * e.g. chunks which don't contain a particular track.
+ */
+public class TrackBinaryReader implements Closeable {
+
+    /** The rows in a single chunk. The chunk is mapped into memory when a column is first accessed. */
+    public class Chunk {
+        private final long offset;
+        private final int rows;
+        private final int minFrame, maxFrame;
+        private final long minTrackId, maxTrackId;
+        private final double minTime, maxTime, minX, maxX, minY, maxY;
+        private ByteBuffer data;
+
+        private Chunk(ByteBuffer footer) {
+            offset = footer.getLong();
+            rows = footer.getInt();
+            minFrame = footer.getInt();
+            maxFrame = footer.getInt();
+            footer.getInt();
+            minTrackId = footer.getLong();
+            maxTrackId = footer.getLong();
+            minTime = footer.getDouble();
+            maxTime = footer.getDouble();
+            minX = footer.getDouble();
+            maxX = footer.getDouble();
+            minY = footer.getDouble();
+            maxY = footer.getDouble();
+        }
+
+        public int getRowCount() {
+            return rows;
+        }
+
+        public int getMinFrame() {
+            return minFrame;
+        }
+
+        public int getMaxFrame() {
+            return maxFrame;
+        }
+
+        public long getMinTrackId() {
+            return minTrackId;
+        }
+
+        public long getMaxTrackId() {
+            return maxTrackId;
+        }
+
+        /** Returns true if the chunk might contain rows for the specified track. */
+        public boolean mayContainTrack(long trackId) {
+            return trackId >= minTrackId && trackId <= maxTrackId;
+        }
+
+        public double getMinTime() {
+            return minTime;
+        }
+
+        public double getMaxTime() {
+            return maxTime;
+        }
+
+        public double getMinX() {
+            return minX;
+        }
+
+        public double getMaxX() {
+            return maxX;
+        }
+
+        public double getMinY() {
+            return minY;
+        }
+
+        public double getMaxY() {
+            return maxY;
+        }
+
+        public DoubleBuffer getTimes() {
+            return column(0, 8).asDoubleBuffer();
+        }
+
+        public DoubleBuffer getX() {
+            return column(rows * 8, 8).asDoubleBuffer();
+        }
+
+        public DoubleBuffer getY() {
+            return column(rows * 16, 8).asDoubleBuffer();
+        }
+
+        public LongBuffer getTrackIds() {
+            return column(rows * 24, 8).asLongBuffer();
+        }
+
+        public IntBuffer getFrames() {
+            return column(rows * 32, 4).asIntBuffer();
+        }
+
+        /** Returns the flags column, see {@link TrackBinaryWriter#FLAG_VALUE_CHANGED}. */
+        public ByteBuffer getFlags() {
+            return column(rows * 36, 1);
+        }
+
+        /** Returns a view of a column in the mapped chunk. */
+        private ByteBuffer column(int start, int valueSize) {
+            if (data == null) {
+                try {
+                    data = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) rows * TrackBinaryWriter.ROW_SIZE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            ByteBuffer buf = data.duplicate();
+            buf.position(start);
+            buf.limit(start + rows * valueSize);
+            return buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /** All of the rows in a file, copied into arrays. */
+    public static class Columns {
+        public final int[] frame;
+        public final double[] time;
+        public final long[] trackId;
+        public final double[] x;
+        public final double[] y;
+        public final byte[] flags;
+
+        private Columns(int size) {
+            frame = new int[size];
+            time = new double[size];
+            trackId = new long[size];
+            x = new double[size];
+            y = new double[size];
+            flags = new byte[size];
+        }
+
+        public int size() {
+            return frame.length;
+        }
+
+        public boolean isValueChanged(int i) {
+            return (flags[i] & TrackBinaryWriter.FLAG_VALUE_CHANGED) != 0;
+        }
+    }
+
+    private final FileChannel channel;
+    private final List<Chunk> chunks;
+    private final List<String> metadata;
+    private final long rowCount;
+
+    public TrackBinaryReader(String fileName) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName), READ);
+        try {
+            final long size = channel.size();
+            if (size < TrackBinaryWriter.HEADER_SIZE + TrackBinaryWriter.TRAILER_SIZE)
+                throw new IOException("Invalid track file " + fileName + ", file is too short");
+            ByteBuffer trailer = read(size - TrackBinaryWriter.TRAILER_SIZE, TrackBinaryWriter.TRAILER_SIZE);
+            final long footerOffset = trailer.getLong();
+            if (trailer.getInt() != TrackBinaryWriter.MAGIC)
+                throw new IOException("Invalid track file " + fileName + ", it may be incomplete");
+            final int version = trailer.getInt();
+            if (version != TrackBinaryWriter.VERSION)
+                throw new IOException("Unsupported track file version " + version + " in " + fileName);
+            if (footerOffset < TrackBinaryWriter.HEADER_SIZE || footerOffset > size - TrackBinaryWriter.TRAILER_SIZE)
+                throw new IOException("Invalid track file " + fileName + ", bad footer offset " + footerOffset);
+
+            ByteBuffer footer = read(footerOffset, (int) (size - TrackBinaryWriter.TRAILER_SIZE - footerOffset));
+            final int numChunks = footer.getInt();
+            List<Chunk> chunks = new ArrayList<>(numChunks);
+            long rows = 0;
+            for (int i = 0; i < numChunks; i++) {
+                Chunk chunk = new Chunk(footer);
+                chunks.add(chunk);
+                rows += chunk.rows;
+            }
+            final int numStrings = footer.getInt();
+            List<String> metadata = new ArrayList<>(numStrings);
+            for (int i = 0; i < numStrings; i++) {
+                byte[] bytes = new byte[footer.getInt()];
+                footer.get(bytes);
+                metadata.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            this.chunks = Collections.unmodifiableList(chunks);
+            this.metadata = Collections.unmodifiableList(metadata);
+            this.rowCount = rows;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Returns the metadata strings, i.e. the runtime parameters. */
+    public List<String> getMetadata() {
+        return metadata;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    /** Returns a chunk. Statistics are available without reading the chunk's rows. */
+    public Chunk getChunk(int index) {
+        return chunks.get(index);
+    }
+
+    /** Reads all rows into arrays. */
+    public Columns readAll() throws IOException {
+        if (rowCount > Integer.MAX_VALUE)
+            throw new IOException("Too many rows to read at once (" + rowCount + "), read chunks instead");
+        Columns columns = new Columns((int) rowCount);
+        int pos = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = getChunk(i);
+            chunk.getFrames().get(columns.frame, pos, chunk.rows);
+            chunk.getTimes().get(columns.time, pos, chunk.rows);
+            chunk.getTrackIds().get(columns.trackId, pos, chunk.rows);
+            chunk.getX().get(columns.x, pos, chunk.rows);
+            chunk.getY().get(columns.y, pos, chunk.rows);
+            chunk.getFlags().get(columns.flags, pos, chunk.rows);
+            pos += chunk.rows;
+        }
+        return columns;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // =================================================================
+    // Private methods
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0)
+                throw new IOException("Unexpected end of track file");
+        }
+        buf.flip();
+        return buf;
+    }
+}
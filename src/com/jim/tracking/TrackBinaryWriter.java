@@ -0,0 +1,247 @@
+package com.jim.tracking;
+
+import com.jim.util.Util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes tracked objects to a binary file with columnar layout. The file can be read with very little parsing,
+ * e.g. by {@link TrackBinaryReader} or the R function {@code YATReadPoints}.
+ *
+ * <p>All values are little-endian. The file consists of:</p>
+ * <ul>
+ *     <li>Header: magic number ({@code "YATB"}), format version (int).</li>
+ *     <li>Chunks, each containing up to {@code chunkRows} rows, stored as columns:
+ *     time (double), x (double), y (double), track ID (long), frame (int), flags (byte),
+ *     then padding to a multiple of 8 bytes.</li>
+ *     <li>Footer: number of chunks (int), then for each chunk: offset (long), number of rows (int),
+ *     min frame, max frame (int), unused (int), min and max track ID (long),
+ *     min and max time, x and y (double).
+ *     Then number of metadata strings (int), and for each string: length in bytes (int) and UTF-8 bytes.</li>
+ *     <li>Trailer: footer offset (long), magic number, format version (int).</li>
+ * </ul>
+ */
+public class TrackBinaryWriter extends TrackWriter {
+
+    private static final String EXTENSION = ".ytb";
+    /** "YATB" as a little-endian int. */
+    static final int MAGIC = 'Y' | 'A' << 8 | 'T' << 16 | 'B' << 24;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int TRAILER_SIZE = 16;
+    /** Size of each chunk's entry in the footer. */
+    static final int CHUNK_INFO_SIZE = 88;
+    /** Bytes per row: 3 doubles, 1 long, 1 int and 1 byte. */
+    static final int ROW_SIZE = 3 * 8 + 8 + 4 + 1;
+    /** Bit which is set in the flags column if the position changed. */
+    public static final int FLAG_VALUE_CHANGED = 1;
+    public static final int DEFAULT_CHUNK_ROWS = 65536;
+
+    private final WritableByteChannel channel;
+    private final int chunkRows;
+    // Rows in the current chunk
+    private int rows;
+    private final double[] time;
+    private final double[] x;
+    private final double[] y;
+    private final long[] trackId;
+    private final int[] frame;
+    private final byte[] flags;
+    private final ByteBuffer buffer;
+    private long position;
+    private final List<ChunkInfo> chunks = new ArrayList<>();
+    private final List<String> metadata = new ArrayList<>();
+
+    public TrackBinaryWriter(String fileName, boolean writeAllFrames, int fps) throws IOException {
+        this(fileName, writeAllFrames, fps, DEFAULT_CHUNK_ROWS);
+    }
+
+    public TrackBinaryWriter(String fileName, boolean writeAllFrames, int fps, int chunkRows) throws IOException {
+        this(FileChannel.open(Paths.get(fileName), CREATE, TRUNCATE_EXISTING, WRITE), writeAllFrames, fps, chunkRows);
+    }
+
+    /**
+     * @param channel Destination of the file contents, closed when writing is finished.
+     * @param chunkRows Maximum number of rows in each chunk.
+     */
+    public TrackBinaryWriter(WritableByteChannel channel, boolean writeAllFrames, int fps, int chunkRows) throws IOException {
+        super(writeAllFrames, fps);
+        if (chunkRows < 1)
+            throw new IllegalArgumentException("Chunk rows must be > 0, found " + chunkRows);
+        this.chunkRows = chunkRows;
+        time = new double[chunkRows];
+        x = new double[chunkRows];
+        y = new double[chunkRows];
+        trackId = new long[chunkRows];
+        frame = new int[chunkRows];
+        flags = new byte[chunkRows];
+        buffer = ByteBuffer.allocateDirect(chunkRows * ROW_SIZE + 8).order(ByteOrder.LITTLE_ENDIAN);
+
+        this.channel = channel;
+        buffer.putInt(MAGIC).putInt(VERSION);
+        write();
+    }
+
+    @Override
+    public String toString() {
+        return Util.getFirstNamedAncestor(getClass()).getSimpleName() +
+                " - writes tracked objects to a binary file, " +
+                "fps = " + (getFps() > 0 ? getFps() : "input video frame rate");
+    }
+
+    public static boolean canHandle(String fileName) {
+        return fileName.toLowerCase().endsWith(EXTENSION);
+    }
+
+    /** Given the name of a video or (possibly compressed) CSV file, returns the name of a binary file with the same base name. */
+    public static String deriveName(String fileName) {
+        if (TrackCSVWriter.isCompressed(fileName))
+            fileName = fileName.substring(0, fileName.length() - 3);
+        return Util.replaceExtension(fileName, EXTENSION);
+    }
+
+    /** Adds the comment to the file metadata. Each line is stored as a separate string. */
+    @Override
+    public void writeComment(String comment) {
+        for (String line : comment.split("\n"))
+            metadata.add(line);
+    }
+
+    @Override
+    protected void writeRow(int frame, double time, long trackId, double x, double y, boolean valueChanged) throws IOException {
+        if (!channel.isOpen())
+            return;
+        this.time[rows] = time;
+        this.x[rows] = x;
+        this.y[rows] = y;
+        this.trackId[rows] = trackId;
+        this.frame[rows] = frame;
+        this.flags[rows] = (byte) (valueChanged ? FLAG_VALUE_CHANGED : 0);
+        if (++rows == chunkRows)
+            writeChunk();
+    }
+
+    @Override
+    protected long getSize() {
+        return position + (long) rows * ROW_SIZE;
+    }
+
+    @Override
+    protected void close() throws IOException {
+        if (!channel.isOpen())
+            return;
+        try {
+            writeChunk();
+            writeFooter();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // =================================================================
+    // Private methods
+
+    /** Statistics of a chunk, written to the footer. */
+    private static class ChunkInfo {
+        final long offset;
+        final int rows;
+        int minFrame = Integer.MAX_VALUE, maxFrame = Integer.MIN_VALUE;
+        long minTrackId = Long.MAX_VALUE, maxTrackId = Long.MIN_VALUE;
+        double minTime = Double.POSITIVE_INFINITY, maxTime = Double.NEGATIVE_INFINITY;
+        double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+
+        ChunkInfo(long offset, int rows) {
+            this.offset = offset;
+            this.rows = rows;
+        }
+
+        void put(ByteBuffer buf) {
+            buf.putLong(offset).putInt(rows).putInt(minFrame).putInt(maxFrame).putInt(0)
+                    .putLong(minTrackId).putLong(maxTrackId)
+                    .putDouble(minTime).putDouble(maxTime)
+                    .putDouble(minX).putDouble(maxX)
+                    .putDouble(minY).putDouble(maxY);
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        if (rows == 0)
+            return;
+        ChunkInfo info = new ChunkInfo(position, rows);
+        for (int i = 0; i < rows; i++) {
+            info.minFrame = Math.min(info.minFrame, frame[i]);
+            info.maxFrame = Math.max(info.maxFrame, frame[i]);
+            info.minTrackId = Math.min(info.minTrackId, trackId[i]);
+            info.maxTrackId = Math.max(info.maxTrackId, trackId[i]);
+            // Comparisons rather than Math.min/max so that NaNs are ignored
+            if (time[i] < info.minTime) info.minTime = time[i];
+            if (time[i] > info.maxTime) info.maxTime = time[i];
+            if (x[i] < info.minX) info.minX = x[i];
+            if (x[i] > info.maxX) info.maxX = x[i];
+            if (y[i] < info.minY) info.minY = y[i];
+            if (y[i] > info.maxY) info.maxY = y[i];
+        }
+        chunks.add(info);
+
+        buffer.asDoubleBuffer().put(time, 0, rows);
+        buffer.position(buffer.position() + rows * 8);
+        buffer.asDoubleBuffer().put(x, 0, rows);
+        buffer.position(buffer.position() + rows * 8);
+        buffer.asDoubleBuffer().put(y, 0, rows);
+        buffer.position(buffer.position() + rows * 8);
+        buffer.asLongBuffer().put(trackId, 0, rows);
+        buffer.position(buffer.position() + rows * 8);
+        buffer.asIntBuffer().put(frame, 0, rows);
+        buffer.position(buffer.position() + rows * 4);
+        buffer.put(flags, 0, rows);
+        // Keep chunks 8 byte aligned
+        while (buffer.position() % 8 != 0)
+            buffer.put((byte) 0);
+        rows = 0;
+        write();
+    }
+
+    private void writeFooter() throws IOException {
+        final long footerOffset = position;
+        List<byte[]> strings = new ArrayList<>(metadata.size());
+        int size = 4 + chunks.size() * CHUNK_INFO_SIZE + 4 + TRAILER_SIZE;
+        for (String s : metadata) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            strings.add(bytes);
+            size += 4 + bytes.length;
+        }
+
+        ByteBuffer footer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        footer.putInt(chunks.size());
+        for (ChunkInfo chunk : chunks)
+            chunk.put(footer);
+        footer.putInt(strings.size());
+        for (byte[] bytes : strings)
+            footer.putInt(bytes.length).put(bytes);
+        footer.putLong(footerOffset).putInt(MAGIC).putInt(VERSION);
+        footer.flip();
+        while (footer.hasRemaining())
+            position += channel.write(footer);
+    }
+
+    /** Writes the contents of the buffer to the file, then clears it. */
+    private void write() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            position += channel.write(buffer);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,91 @@
+package com.jim.tracking;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Converts a (possibly gzip compressed) CSV file written by {@link TrackCSVWriter} to the binary format written by {@link TrackBinaryWriter}.
+ * Comments (i.e. runtime parameters) are stored as metadata.
+ *
+ * Usage: {@code java -cp YetAnotherTracker.jar com.jim.tracking.TrackFileConverter <csv-file> [<binary-file> [<comment-prefix>]]}
+ */
+public class TrackFileConverter {
+    private static final List<String> COLUMNS = Arrays.asList("Frame", "Time", "TrackId", "x", "y", "ValueChanged");
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: " + TrackFileConverter.class.getName() + " <csv-file> [<binary-file> [<comment-prefix>]]");
+            System.err.println("Converts a CSV track file to binary format. The binary file name defaults to the CSV file name with extension .ytb,");
+            System.err.println("and comment prefix defaults to \"# \".");
+            System.exit(1);
+        }
+        String csvFile = args[0];
+        String binFile = args.length > 1 ? args[1] : TrackBinaryWriter.deriveName(csvFile);
+        String commentPrefix = args.length > 2 ? args[2] : "# ";
+        try {
+            long rows = csvToBinary(csvFile, binFile, commentPrefix);
+            System.out.println("Converted " + rows + " rows from " + csvFile + " to " + binFile);
+        } catch (IOException e) {
+            System.err.println("Error converting " + csvFile + ": " + e.getLocalizedMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Converts a CSV track file to binary format.
+     *
+     * @param commentPrefix Lines starting with this prefix are comments.
+     * @return Number of rows converted.
+     */
+    public static long csvToBinary(String csvFile, String binFile, String commentPrefix) throws IOException {
+        long rows = 0;
+        int lineNumber = 0;
+        InputStream csvIn = new FileInputStream(csvFile);
+        if (TrackCSVWriter.isCompressed(csvFile))
+            csvIn = new GZIPInputStream(csvIn, 1 << 16);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(csvIn), 1 << 16)) {
+            TrackBinaryWriter out = new TrackBinaryWriter(binFile, false, 0);
+            try {
+                // Locate the columns
+                String line = in.readLine();
+                lineNumber++;
+                if (line == null)
+                    throw new IOException("File is empty");
+                int[] index = new int[COLUMNS.size()];
+                List<String> headers = Arrays.asList(line.replace("\"", "").split(","));
+                for (int i = 0; i < index.length; i++) {
+                    index[i] = headers.indexOf(COLUMNS.get(i));
+                    if (index[i] < 0)
+                        throw new IOException("Missing column " + COLUMNS.get(i));
+                }
+
+                while ((line = in.readLine()) != null) {
+                    lineNumber++;
+                    if (line.startsWith(commentPrefix)) {
+                        out.writeComment(line.substring(commentPrefix.length()));
+                    } else if (!line.isEmpty()) {
+                        String[] values = line.split(",");
+                        out.writeRow(Integer.parseInt(values[index[0]]),
+                                Double.parseDouble(values[index[1]]),
+                                Long.parseLong(values[index[2]]),
+                                Double.parseDouble(values[index[3]]),
+                                Double.parseDouble(values[index[4]]),
+                                Boolean.parseBoolean(values[index[5]]));
+                        rows++;
+                    }
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid value at line " + lineNumber + ": " + e.getLocalizedMessage(), e);
+            } finally {
+                out.close();
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,391 @@
+package com.jim.tracking;
+
+import com.jim.util.LongIntMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An index of the tracks in a track file, which is written to a small CSV "sidecar" file alongside the track file.
+ *
+ * For each track, the index records summary statistics, and the location of the track's points in the track file,
+ * as a list of runs of adjacent rows. Rows of different tracks are interleaved, so a track's rows may be spread
+ * across the whole file, but its runs only cover its own rows. Runs are byte ranges in (uncompressed) CSV files,
+ * and row ranges in binary files.
+ * Tracks can be chosen using the statistics, then their points read without reading the rest of the track file
+ * (see {@link #readTrack(String, long)}).
+ * The final row, with track ID -1, is indexed like any other track, so its maximum x and y are the frame size.
+ */
+public class TrackIndex {
+    private static final String EXTENSION = ".idx";
+    private static final String[] HEADERS = {"TrackId", "FirstFrame", "LastFrame", "StartTime", "EndTime", "Points",
+            "PathLength", "Displacement", "StartX", "StartY", "EndX", "EndY", "MinX", "MaxX", "MinY", "MaxY",
+            "FirstRow", "LastRow", "Runs"};
+    // Separates runs in the Runs column, and the start and length of each run
+    private static final String RUN_SEP = " ";
+    private static final String RUN_PART_SEP = ":";
+
+    /** Index entry for a single track. */
+    public static class Entry {
+        private final long trackId;
+        private int firstFrame, lastFrame;
+        private double startTime, endTime;
+        private long points;
+        private double pathLength;
+        private double startX, startY, endX, endY;
+        private double minX, maxX, minY, maxY;
+        private long firstRow, lastRow;
+        // Runs of adjacent rows: byte offset and number of bytes, or first row and number of rows if offsets are unknown
+        private int runs;
+        private long[] runStart = new long[1];
+        private long[] runLength = new long[1];
+
+        private Entry(long trackId) {
+            this.trackId = trackId;
+        }
+
+        public long getTrackId() {
+            return trackId;
+        }
+
+        public int getFirstFrame() {
+            return firstFrame;
+        }
+
+        public int getLastFrame() {
+            return lastFrame;
+        }
+
+        public double getStartTime() {
+            return startTime;
+        }
+
+        public double getEndTime() {
+            return endTime;
+        }
+
+        /** Returns the number of rows in the track file for this track. */
+        public long getPoints() {
+            return points;
+        }
+
+        /** Returns the total distance travelled. */
+        public double getPathLength() {
+            return pathLength;
+        }
+
+        /** Returns the distance from the first point to the last point. */
+        public double getDisplacement() {
+            return Math.hypot(endX - startX, endY - startY);
+        }
+
+        public double getMinX() {
+            return minX;
+        }
+
+        public double getMaxX() {
+            return maxX;
+        }
+
+        public double getMinY() {
+            return minY;
+        }
+
+        public double getMaxY() {
+            return maxY;
+        }
+
+        /** Returns the 0-based index of the first row (excluding headers and comments) containing this track. */
+        public long getFirstRow() {
+            return firstRow;
+        }
+
+        /** Returns the 0-based index of the last row (excluding headers and comments) containing this track. */
+        public long getLastRow() {
+            return lastRow;
+        }
+
+        /** Returns the number of runs of adjacent rows containing this track. */
+        public int getRunCount() {
+            return runs;
+        }
+
+        /** Returns the start of a run: the byte offset in an (uncompressed) CSV file, or the 0-based row in a binary file. */
+        public long getRunStart(int run) {
+            return runStart[run];
+        }
+
+        /** Returns the length of a run: the number of bytes in a CSV file, or the number of rows in a binary file. */
+        public long getRunLength(int run) {
+            return runLength[run];
+        }
+
+        /** Adds a row to the runs, extending the last run if the row immediately follows it. */
+        private void addRun(long row, long startOffset, long endOffset) {
+            final long start = startOffset >= 0 ? startOffset : row;
+            final long length = startOffset >= 0 ? endOffset - startOffset : 1;
+            if (runs > 0 && lastRow == row - 1) {
+                runLength[runs - 1] += length;
+            } else {
+                if (runs == runStart.length) {
+                    runStart = Arrays.copyOf(runStart, 2 * runs);
+                    runLength = Arrays.copyOf(runLength, 2 * runs);
+                }
+                runStart[runs] = start;
+                runLength[runs] = length;
+                runs++;
+            }
+        }
+
+        /** Formats the runs as e.g. "0:3 10:1". */
+        private String formatRuns() {
+            StringBuilder buf = new StringBuilder();
+            for (int r = 0; r < runs; r++) {
+                if (r > 0)
+                    buf.append(RUN_SEP);
+                buf.append(runStart[r]).append(RUN_PART_SEP).append(runLength[r]);
+            }
+            return buf.toString();
+        }
+
+        /** Parses runs written by {@link #formatRuns}. */
+        private void parseRuns(String value) {
+            final String[] values = value.isEmpty() ? new String[0] : value.split(RUN_SEP);
+            runs = values.length;
+            runStart = new long[Math.max(1, runs)];
+            runLength = new long[Math.max(1, runs)];
+            for (int r = 0; r < runs; r++) {
+                final String[] run = values[r].split(RUN_PART_SEP);
+                runStart[r] = Long.parseLong(run[0]);
+                runLength[r] = Long.parseLong(run[1]);
+            }
+        }
+
+        private Object[] values() {
+            return new Object[]{trackId, firstFrame, lastFrame, startTime, endTime, points,
+                    pathLength, getDisplacement(), startX, startY, endX, endY, minX, maxX, minY, maxY,
+                    firstRow, lastRow, formatRuns()};
+        }
+    }
+
+    // Entries in the order that tracks were first written
+    private final List<Entry> entries = new ArrayList<>();
+    // Track ID to index in entries
+    private final LongIntMap slots = new LongIntMap();
+
+    /** Given the name of a track file, returns the name of its index file. */
+    public static String deriveName(String trackFile) {
+        return trackFile + EXTENSION;
+    }
+
+    /** Returns the index entries, in the order that tracks first appear in the track file. */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /** Returns the entry for a track, or null if the track isn't in the index. */
+    public Entry get(long trackId) {
+        final int slot = slots.get(trackId);
+        return slot == LongIntMap.NO_VALUE ? null : entries.get(slot);
+    }
+
+    /**
+     * Adds a row to the index.
+     *
+     * @param row 0-based index of the row in the track file.
+     * @param startOffset Byte offset of the row in the file, or -1 if unknown.
+     * @param endOffset Byte offset of the end of the row, or -1 if unknown.
+     */
+    public void add(long trackId, int frame, double time, double x, double y, long row, long startOffset, long endOffset) {
+        int slot = slots.get(trackId);
+        Entry e;
+        if (slot == LongIntMap.NO_VALUE) {
+            e = new Entry(trackId);
+            e.firstFrame = frame;
+            e.startTime = time;
+            e.startX = e.endX = e.minX = e.maxX = x;
+            e.startY = e.endY = e.minY = e.maxY = y;
+            e.firstRow = row;
+            slots.put(trackId, entries.size());
+            entries.add(e);
+        } else {
+            e = entries.get(slot);
+            e.pathLength += Math.hypot(x - e.endX, y - e.endY);
+            e.endX = x;
+            e.endY = y;
+            if (x < e.minX) e.minX = x;
+            if (x > e.maxX) e.maxX = x;
+            if (y < e.minY) e.minY = y;
+            if (y > e.maxY) e.maxY = y;
+        }
+        e.lastFrame = frame;
+        e.endTime = time;
+        e.points++;
+        e.addRun(row, startOffset, endOffset);
+        e.lastRow = row;
+    }
+
+    /** Writes the index to a CSV file. */
+    public void write(String fileName) throws IOException {
+        CSVWriter out = new CSVWriter(new FileWriter(fileName));
+        try {
+            out.writeHeaders(HEADERS);
+            for (Entry e : entries)
+                out.writeValues(e.values());
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Reads an index from a CSV file written by {@link #write(String)}. */
+    public static TrackIndex read(String fileName) throws IOException {
+        TrackIndex index = new TrackIndex();
+        try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+            String line = in.readLine();
+            if (line == null || !Arrays.asList(line.replace("\"", "").split(",")).equals(Arrays.asList(HEADERS)))
+                throw new IOException("Invalid track index file " + fileName);
+            while ((line = in.readLine()) != null) {
+                String[] v = line.split(",");
+                try {
+                    Entry e = new Entry(Long.parseLong(v[0]));
+                    e.firstFrame = Integer.parseInt(v[1]);
+                    e.lastFrame = Integer.parseInt(v[2]);
+                    e.startTime = Double.parseDouble(v[3]);
+                    e.endTime = Double.parseDouble(v[4]);
+                    e.points = Long.parseLong(v[5]);
+                    e.pathLength = Double.parseDouble(v[6]);
+                    // v[7] is displacement, which is derived
+                    e.startX = Double.parseDouble(v[8]);
+                    e.startY = Double.parseDouble(v[9]);
+                    e.endX = Double.parseDouble(v[10]);
+                    e.endY = Double.parseDouble(v[11]);
+                    e.minX = Double.parseDouble(v[12]);
+                    e.maxX = Double.parseDouble(v[13]);
+                    e.minY = Double.parseDouble(v[14]);
+                    e.maxY = Double.parseDouble(v[15]);
+                    e.firstRow = Long.parseLong(v[16]);
+                    e.lastRow = Long.parseLong(v[17]);
+                    e.parseRuns(unquote(v, 18));
+                    index.slots.put(e.trackId, index.entries.size());
+                    index.entries.add(e);
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+                    throw new IOException("Invalid line in track index file " + fileName + ": " + line, ex);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Reads the points in a single track from a track file (CSV, compressed CSV or binary).
+     * Only the part of the file containing the track is read.
+     */
+    public TrackPoints readTrack(String trackFile, long trackId) throws IOException {
+        Entry e = get(trackId);
+        if (e == null)
+            throw new IllegalArgumentException("Track " + trackId + " is not in the index");
+        TrackPoints points = new TrackPoints(trackId);
+        if (TrackBinaryWriter.canHandle(trackFile))
+            readBinaryTrack(trackFile, e, points);
+        else
+            readCSVTrack(trackFile, e, points);
+        return points;
+    }
+
+    // =================================================================
+    // Private methods
+
+    /** Returns value {@code i} of a row, without surrounding quotes. */
+    private static String unquote(String[] values, int i) {
+        final String v = values[i];
+        return v.length() >= 2 && v.startsWith("\"") && v.endsWith("\"") ? v.substring(1, v.length() - 1) : v;
+    }
+
+    private void readBinaryTrack(String trackFile, Entry e, TrackPoints points) throws IOException {
+        try (TrackBinaryReader reader = new TrackBinaryReader(trackFile)) {
+            long chunkStart = 0;
+            int run = 0;
+            for (int c = 0; c < reader.getChunkCount() && run < e.runs; c++) {
+                final TrackBinaryReader.Chunk chunk = reader.getChunk(c);
+                final int rows = chunk.getRowCount();
+                final long chunkEnd = chunkStart + rows;
+                // Only read chunks which contain the track's runs, and only the rows in the runs
+                if (e.runStart[run] < chunkEnd && chunk.mayContainTrack(e.trackId)) {
+                    final LongBuffer ids = chunk.getTrackIds();
+                    for (; run < e.runs && e.runStart[run] < chunkEnd; run++) {
+                        final int from = (int) Math.max(0, e.runStart[run] - chunkStart);
+                        final int to = (int) Math.min(rows, e.runStart[run] + e.runLength[run] - chunkStart);
+                        for (int i = from; i < to; i++) {
+                            if (ids.get(i) == e.trackId)
+                                points.add(chunk.getFrames().get(i), chunk.getTimes().get(i), chunk.getX().get(i), chunk.getY().get(i),
+                                        (chunk.getFlags().get(i) & TrackBinaryWriter.FLAG_VALUE_CHANGED) != 0);
+                        }
+                        // A run which continues into the next chunk is finished there
+                        if (e.runStart[run] + e.runLength[run] > chunkEnd)
+                            break;
+                    }
+                }
+                chunkStart = chunkEnd;
+            }
+        }
+    }
+
+    private void readCSVTrack(String trackFile, Entry e, TrackPoints points) throws IOException {
+        final String id = Long.toString(e.trackId);
+        // Skipping seeks in an uncompressed file, unless the data is already buffered. A compressed file
+        // can't be seeked, so it is decompressed and everything outside the runs is discarded
+        try (FileInputStream file = new FileInputStream(trackFile);
+             InputStream stream = new BufferedInputStream(TrackCSVWriter.isCompressed(trackFile) ?
+                     new GZIPInputStream(file, 1 << 16) : file, 1 << 16)) {
+            final byte[] buffer = new byte[1 << 16];
+            final StringBuilder line = new StringBuilder();
+            long position = 0;
+            for (int r = 0; r < e.runs; r++) {
+                long toSkip = e.runStart[r] - position;
+                while (toSkip > 0) {
+                    final long skipped = stream.skip(toSkip);
+                    if (skipped <= 0)
+                        throw new IOException("Unexpected end of file " + trackFile);
+                    toSkip -= skipped;
+                }
+                // Rows only contain ASCII characters, so 1 character is 1 byte
+                long remaining = e.runLength[r];
+                while (remaining > 0) {
+                    final int n = stream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n < 0)
+                        throw new IOException("Unexpected end of file " + trackFile);
+                    for (int i = 0; i < n; i++) {
+                        if (buffer[i] == '\n') {
+                            addCSVRow(line, id, points);
+                            line.setLength(0);
+                        } else {
+                            line.append((char) buffer[i]);
+                        }
+                    }
+                    remaining -= n;
+                }
+                position = e.runStart[r] + e.runLength[r];
+            }
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid row in " + trackFile, ex);
+        }
+    }
+
+    private static void addCSVRow(CharSequence line, String id, TrackPoints points) {
+        String[] v = line.toString().split(",");
+        if (v.length >= 6 && v[2].equals(id))
+            points.add(Integer.parseInt(v[0]), Double.parseDouble(v[1]), Double.parseDouble(v[3]), Double.parseDouble(v[4]),
+                    Boolean.parseBoolean(v[5]));
+    }
+}
@@ -0,0 +1,63 @@
+package com.jim.tracking;
+
+import java.util.Arrays;
+
+/** The points in a single track, read from a track file. */
+public class TrackPoints {
+    private final long trackId;
+    private int size;
+    private int[] frame = new int[64];
+    private double[] time = new double[64];
+    private double[] x = new double[64];
+    private double[] y = new double[64];
+    private boolean[] valueChanged = new boolean[64];
+
+    public TrackPoints(long trackId) {
+        this.trackId = trackId;
+    }
+
+    public long getTrackId() {
+        return trackId;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int frame(int i) {
+        return frame[i];
+    }
+
+    public double time(int i) {
+        return time[i];
+    }
+
+    public double x(int i) {
+        return x[i];
+    }
+
+    public double y(int i) {
+        return y[i];
+    }
+
+    public boolean isValueChanged(int i) {
+        return valueChanged[i];
+    }
+
+    void add(int frame, double time, double x, double y, boolean valueChanged) {
+        if (size == this.frame.length) {
+            final int capacity = 2 * size;
+            this.frame = Arrays.copyOf(this.frame, capacity);
+            this.time = Arrays.copyOf(this.time, capacity);
+            this.x = Arrays.copyOf(this.x, capacity);
+            this.y = Arrays.copyOf(this.y, capacity);
+            this.valueChanged = Arrays.copyOf(this.valueChanged, capacity);
+        }
+        this.frame[size] = frame;
+        this.time[size] = time;
+        this.x[size] = x;
+        this.y[size] = y;
+        this.valueChanged[size] = valueChanged;
+        size++;
+    }
+}
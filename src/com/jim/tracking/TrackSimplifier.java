@@ -0,0 +1,188 @@
+package com.jim.tracking;
+
+import com.jim.util.LongIntMap;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Simplifies tracks as they are written, by only writing the rows needed to reconstruct each track within
+ * a spatial tolerance.
+ *
+ * Uses an opening window: each row is held until a later row shows that the rows since the last written
+ * row can't all be represented by a straight line from the last written row (within the tolerance), at which
+ * point the held row is written. The first row of a track, rows which record the last frame at a position
+ * ({@code valueChanged} false) and the last row of a track are always written.
+ * The window is limited to a maximum number of rows, so the cost per row is bounded. Since held rows are
+ * written late, the rows of a track are in frame order, but rows of different tracks are not.
+ */
+class TrackSimplifier {
+
+    /** Receives the rows which are retained. */
+    interface Sink {
+        void write(int frame, double time, long trackId, double x, double y, boolean valueChanged) throws IOException;
+    }
+
+    private final double tolerance;
+    private final int window;
+    private final Sink sink;
+
+    // Track ID to slot
+    private final LongIntMap slots = new LongIntMap();
+    private int numSlots = 0;
+    private int[] freeSlots = new int[0];
+    private int numFree = 0;
+
+    // Per slot values
+    private long[] trackId = new long[0];
+    private int[] lastSeen = new int[0];
+    // Position of the last written row
+    private double[] anchorX = new double[0];
+    private double[] anchorY = new double[0];
+    // Number of rows held since the last written row. The last one is the candidate to be written next
+    private int[] held = new int[0];
+    private double[][] heldX = new double[0][];
+    private double[][] heldY = new double[0][];
+    private int[] lastFrame = new int[0];
+    private double[] lastTime = new double[0];
+
+    /**
+     * @param tolerance Maximum distance between a row which isn't written and the simplified track, in output units.
+     * @param window Maximum number of rows between written rows.
+     */
+    TrackSimplifier(double tolerance, int window, Sink sink) {
+        this.tolerance = tolerance;
+        this.window = window;
+        this.sink = sink;
+    }
+
+    /** Adds a row, which is written immediately, later, or not at all. */
+    void add(int frame, double time, long id, double x, double y, boolean valueChanged) throws IOException {
+        int s = slots.get(id);
+        if (s == LongIntMap.NO_VALUE) {
+            // Always write the first row
+            s = allocate(id);
+            write(s, frame, time, x, y, valueChanged);
+            return;
+        }
+
+        if (!valueChanged) {
+            // The last frame at a position must be written, so write any held row first
+            flush(s);
+            write(s, frame, time, x, y, false);
+            return;
+        }
+
+        final int n = held[s];
+        if (n == window || (n > 0 && !fits(s, x, y))) {
+            // The held rows can't be represented by a line to this row, so write the last held row
+            flush(s);
+        }
+        final int i = held[s]++;
+        heldX[s][i] = x;
+        heldY[s][i] = y;
+        lastFrame[s] = frame;
+        lastTime[s] = time;
+    }
+
+    /** Records that a track is present in a frame. Must be called after any rows for the frame are added. */
+    void seen(long id, int frameIndex) {
+        final int s = slots.get(id);
+        if (s != LongIntMap.NO_VALUE)
+            lastSeen[s] = frameIndex;
+    }
+
+    /** Writes the held row of tracks which weren't present in the specified frame, and forgets them. */
+    void flushRetired(int frameIndex) throws IOException {
+        for (int s = 0; s < numSlots; s++) {
+            if (trackId[s] != -1 && lastSeen[s] != frameIndex) {
+                flush(s);
+                free(s);
+            }
+        }
+    }
+
+    /** Writes the held row of all tracks. */
+    void flushAll() throws IOException {
+        for (int s = 0; s < numSlots; s++) {
+            if (trackId[s] != -1)
+                flush(s);
+        }
+    }
+
+    // =================================================================
+    // Private methods
+
+    /** Returns true if all held rows are within tolerance of the line from the anchor to (x, y). */
+    private boolean fits(int s, double x, double y) {
+        final double ax = anchorX[s];
+        final double ay = anchorY[s];
+        final double dx = x - ax;
+        final double dy = y - ay;
+        final double len2 = dx * dx + dy * dy;
+        final double tol2 = tolerance * tolerance;
+        final double[] hx = heldX[s];
+        final double[] hy = heldY[s];
+        for (int i = 0; i < held[s]; i++) {
+            // Squared distance from the held point to the line segment
+            double t = len2 > 0 ? ((hx[i] - ax) * dx + (hy[i] - ay) * dy) / len2 : 0;
+            t = Math.max(0, Math.min(1, t));
+            final double ex = ax + t * dx - hx[i];
+            final double ey = ay + t * dy - hy[i];
+            if (ex * ex + ey * ey > tol2)
+                return false;
+        }
+        return true;
+    }
+
+    /** Writes the last held row, if any. */
+    private void flush(int s) throws IOException {
+        final int n = held[s];
+        if (n > 0)
+            write(s, lastFrame[s], lastTime[s], heldX[s][n - 1], heldY[s][n - 1], true);
+    }
+
+    private void write(int s, int frame, double time, double x, double y, boolean valueChanged) throws IOException {
+        sink.write(frame, time, trackId[s], x, y, valueChanged);
+        anchorX[s] = x;
+        anchorY[s] = y;
+        held[s] = 0;
+    }
+
+    private int allocate(long id) {
+        final int s;
+        if (numFree > 0) {
+            s = freeSlots[--numFree];
+        } else {
+            if (numSlots == trackId.length)
+                grow(Math.max(16, 2 * numSlots));
+            s = numSlots++;
+            heldX[s] = new double[window];
+            heldY[s] = new double[window];
+        }
+        trackId[s] = id;
+        held[s] = 0;
+        slots.put(id, s);
+        return s;
+    }
+
+    private void free(int s) {
+        slots.remove(trackId[s]);
+        // Mark the slot as unused
+        trackId[s] = -1;
+        freeSlots[numFree++] = s;
+    }
+
+    private void grow(int n) {
+        freeSlots = Arrays.copyOf(freeSlots, n);
+        trackId = Arrays.copyOf(trackId, n);
+        lastSeen = Arrays.copyOf(lastSeen, n);
+        anchorX = Arrays.copyOf(anchorX, n);
+        anchorY = Arrays.copyOf(anchorY, n);
+        held = Arrays.copyOf(held, n);
+        heldX = Arrays.copyOf(heldX, n);
+        heldY = Arrays.copyOf(heldY, n);
+        lastFrame = Arrays.copyOf(lastFrame, n);
+        lastTime = Arrays.copyOf(lastTime, n);
+    }
+}
@@ -0,0 +1,322 @@
+package com.jim.tracking;
+
+import com.jim.util.Util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Publishes track rows to processes which connect to a local TCP port, so they can consume tracks as they
+ * are produced. Each connected client receives the rows written after it connects, including the final row
+ * with track ID -1, after which the connection is closed.
+ *
+ * Rows are sent either as newline-delimited JSON objects, e.g.
+ * {@code {"frame":12,"time":0.48,"trackId":3,"x":101.5,"y":87.25,"changed":true}}, or as binary records,
+ * each consisting of a 4 byte length (37) followed by the frame (int32), time (float64), track ID (int64),
+ * x (float64), y (float64) and flags (1 byte, 1 = position changed), all little-endian.
+ *
+ * Sockets are serviced by a single I/O thread using a selector. The rows written while handling a frame are
+ * queued together for each client in a buffer of fixed size. If a client is too slow to keep up and its buffer
+ * is full, either the rows are not sent to that client ({@link Policy#DROP}), or tracking waits for the client
+ * ({@link Policy#BLOCK}). Rows are never split, so clients always receive complete records.
+ * When tracking finishes, rows which haven't been sent within a few seconds are discarded.
+ */
+public class TrackStreamWriter extends TrackWriter {
+
+    /** Record format. */
+    public enum Format {
+        NDJSON, BINARY
+    }
+
+    /** What to do when a client's buffer is full. */
+    public enum Policy {
+        DROP, BLOCK
+    }
+
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    /** Size of a binary record, excluding the length prefix. */
+    public static final int RECORD_SIZE = 37;
+    // Time to wait for queued rows to be sent to clients when tracking finishes
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    private final Format format;
+    private final Policy policy;
+    private final int bufferSize;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private volatile boolean closing;
+    // Records for the current frame, written by the tracking thread
+    private ByteBuffer frame = ByteBuffer.allocate(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private final StringBuilder json = new StringBuilder(128);
+    private long clientCount;
+    private long framesDropped;
+
+    /** A connected client. Access to the buffer is synchronized on the client. */
+    private static class Client {
+        final SocketChannel channel;
+        ByteBuffer out;
+        boolean closed;
+
+        Client(SocketChannel channel, int bufferSize) {
+            this.channel = channel;
+            out = ByteBuffer.allocateDirect(bufferSize);
+        }
+    }
+
+    /**
+     * @param port Local TCP port to listen on, or 0 to choose a free port (see {@link #getPort()}).
+     * @param bufferSize Size of the buffer for each client, in bytes.
+     * @param fps Frame rate used to calculate times. If 0, the frame rate of the input video is used.
+     */
+    public TrackStreamWriter(int port, Format format, Policy policy, int bufferSize, boolean writeAllFrames, int fps) throws IOException {
+        super(writeAllFrames, fps);
+        this.format = format;
+        this.policy = policy;
+        this.bufferSize = bufferSize;
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+        selector = Selector.open();
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        ioThread = new Thread(this::serve, "Track stream " + getPort());
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    @Override
+    public String toString() {
+        return Util.getFirstNamedAncestor(getClass()).getSimpleName() +
+                " - streams tracked objects as " + format.toString().toLowerCase() + " to local port " + getPort() +
+                ", " + policy.toString().toLowerCase() + " frames for slow clients";
+    }
+
+    /** Returns the local port that clients can connect to. */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /** Comments aren't sent to clients. */
+    @Override
+    public void writeComment(String comment) {
+    }
+
+    @Override
+    protected void writeTracks(FrameSnapshot frame, int frameIndex, double fps) throws IOException {
+        super.writeTracks(frame, frameIndex, fps);
+        publish();
+    }
+
+    @Override
+    protected void writeRow(int frame, double time, long trackId, double x, double y, boolean valueChanged) {
+        if (format == Format.BINARY) {
+            ensureCapacity(4 + RECORD_SIZE);
+            this.frame.putInt(RECORD_SIZE)
+                    .putInt(frame)
+                    .putDouble(time)
+                    .putLong(trackId)
+                    .putDouble(x)
+                    .putDouble(y)
+                    .put((byte) (valueChanged ? TrackBinaryWriter.FLAG_VALUE_CHANGED : 0));
+        } else {
+            json.setLength(0);
+            json.append("{\"frame\":").append(frame)
+                    .append(",\"time\":").append(time)
+                    .append(",\"trackId\":").append(trackId)
+                    .append(",\"x\":").append(x)
+                    .append(",\"y\":").append(y)
+                    .append(",\"changed\":").append(valueChanged)
+                    .append("}\n");
+            final int len = json.length();
+            ensureCapacity(len);
+            // JSON records only contain ASCII characters
+            for (int i = 0; i < len; i++)
+                this.frame.put((byte) json.charAt(i));
+        }
+    }
+
+    @Override
+    protected void close() throws IOException {
+        publish();
+        // Give the I/O thread a chance to send queued rows
+        closing = true;
+        selector.wakeup();
+        try {
+            ioThread.join(CLOSE_TIMEOUT_MS + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (framesDropped > 0)
+            System.out.println("Track stream on port " + getPort() + " dropped " + framesDropped + " frame" +
+                    (framesDropped == 1 ? "" : "s") + " for slow clients (" + clientCount + " client" + (clientCount == 1 ? "" : "s") + ")");
+    }
+
+    // =================================================================
+    // Private methods
+
+    private void ensureCapacity(int n) {
+        if (frame.remaining() < n) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * frame.capacity(), frame.position() + n)).order(ByteOrder.LITTLE_ENDIAN);
+            frame.flip();
+            bigger.put(frame);
+            frame = bigger;
+        }
+    }
+
+    /** Queues the rows of the current frame for each client. */
+    private void publish() throws IOException {
+        frame.flip();
+        final int size = frame.remaining();
+        if (size > 0) {
+            for (Client client : clients) {
+                synchronized (client) {
+                    if (client.closed)
+                        continue;
+                    if (client.out.capacity() < size) {
+                        // Frames are never split, so the buffer must be able to hold the whole frame
+                        ByteBuffer bigger = ByteBuffer.allocateDirect(size + bufferSize);
+                        client.out.flip();
+                        bigger.put(client.out);
+                        client.out = bigger;
+                    }
+                    if (client.out.remaining() < size) {
+                        if (policy == Policy.DROP) {
+                            framesDropped++;
+                            continue;
+                        }
+                        // Wait for the I/O thread to send some of the queued rows
+                        while (!client.closed && client.out.remaining() < size) {
+                            selector.wakeup();
+                            try {
+                                client.wait();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new IOException("Interrupted while waiting for track stream client", e);
+                            }
+                        }
+                        if (client.closed)
+                            continue;
+                    }
+                    client.out.put(frame.duplicate());
+                }
+            }
+            selector.wakeup();
+        }
+        frame.clear();
+    }
+
+    /** Runs on the I/O thread. Accepts connections and sends queued rows to clients. */
+    private void serve() {
+        final ByteBuffer discard = ByteBuffer.allocate(1024);
+        long deadline = Long.MAX_VALUE;
+        try {
+            while (true) {
+                // Only ask to write to clients which have rows queued
+                boolean queued = false;
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid() && key.attachment() instanceof Client) {
+                        final Client client = (Client) key.attachment();
+                        synchronized (client) {
+                            final boolean hasRows = client.out.position() > 0;
+                            key.interestOps(hasRows ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                            queued |= hasRows;
+                        }
+                    }
+                }
+                if (closing) {
+                    if (deadline == Long.MAX_VALUE)
+                        deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+                    if (!queued || System.currentTimeMillis() > deadline)
+                        break;
+                    selector.select(100);
+                } else {
+                    selector.select();
+                }
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    final Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            // Clients don't send anything, so this detects when the client closes the connection
+                            discard.clear();
+                            if (client.channel.read(discard) < 0) {
+                                disconnect(client, key);
+                                continue;
+                            }
+                        }
+                        if (key.isWritable()) {
+                            synchronized (client) {
+                                client.out.flip();
+                                client.channel.write(client.out);
+                                client.out.compact();
+                                client.notifyAll();
+                            }
+                        }
+                    } catch (IOException e) {
+                        disconnect(client, key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error in track stream on port " + getPort() + ": " + e.getLocalizedMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Client)
+                    disconnect((Client) key.attachment(), key);
+            }
+            try {
+                selector.close();
+                server.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        final Client client = new Client(channel, bufferSize);
+        channel.register(selector, SelectionKey.OP_READ, client);
+        clients.add(client);
+        clientCount++;
+    }
+
+    private void disconnect(Client client, SelectionKey key) {
+        synchronized (client) {
+            client.closed = true;
+            client.notifyAll();
+        }
+        clients.remove(client);
+        key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.jim.tracking;
+
+import com.jim.Params;
+import com.jim.util.LongIntMap;
+import com.jim.util.Util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Writes a CSV table with one row of summary statistics per track, so that real tracks can be identified
+ * (e.g. by path length or displacement) without reading the track file.
+ *
+ * Statistics are accumulated as tracks are updated, using a fixed amount of memory per track.
+ * Rows are written when tracking finishes, in track ID order. Optionally, the row for a track is
+ * written as soon as the track is retired, and the memory for the track is reused.
+ *
+ * Positions and distances are in output units, and times are in seconds.
+ */
+public class TrackSummaryWriter implements MotionDetector.SnapshotFilter {
+
+    private static final String[] HEADERS = {"TrackId", "FirstFrame", "LastFrame", "StartTime", "EndTime", "Duration",
+            "Points", "Detections", "DetectionRatio", "PathLength", "MaxDisplacement", "NetDisplacement", "Diffusion",
+            "MeanSpeed", "MaxSpeed", "StartX", "StartY", "EndX", "EndY"};
+
+    private final CSVWriter csv;
+    private final boolean writeRetired;
+    private final OutputUnits units = new OutputUnits();
+    // User specified frame rate, or 0 to use the input video frame rate
+    private final int userFps;
+    private double fps;
+
+    // Track ID to slot. Statistics for each track are stored at its slot in the arrays below
+    private final LongIntMap slots = new LongIntMap();
+    private int capacity = 0;
+    private int numSlots = 0;
+    // Slots which can be reused
+    private int[] freeSlots = new int[0];
+    private int numFree = 0;
+    // Slots of tracks which are still being tracked
+    private int[] live = new int[0];
+    private int numLive = 0;
+
+    private long[] trackId = new long[0];
+    // Frame indices of the first frame, the last frame in which the track was present,
+    // and the last frame in which its position changed
+    private int[] firstFrame = new int[0];
+    private int[] lastSeen = new int[0];
+    private int[] lastMoved = new int[0];
+    // Number of frames in which the position changed or the track was detected
+    private int[] points = new int[0];
+    private int[] detections = new int[0];
+    private double[] startX = new double[0];
+    private double[] startY = new double[0];
+    private double[] x = new double[0];
+    private double[] y = new double[0];
+    private double[] pathLength = new double[0];
+    private double[] maxDisplacement = new double[0];
+    private double[] maxSpeed = new double[0];
+    // Sums of positions and squared positions, for the diffusion distance
+    private double[] sumX = new double[0];
+    private double[] sumY = new double[0];
+    private double[] sumSq = new double[0];
+
+    /**
+     * @param writeRetired If true, the row for a track is written as soon as the track is retired,
+     *                     otherwise all rows are written when tracking finishes.
+     * @param fps Frame rate used to calculate times. If 0, the frame rate of the input video is used.
+     */
+    public TrackSummaryWriter(Writer writer, boolean writeRetired, int fps) throws IOException {
+        this.writeRetired = writeRetired;
+        this.userFps = fps;
+        csv = new CSVWriter(writer);
+        csv.writeHeaders(HEADERS);
+    }
+
+    @Override
+    public String toString() {
+        return Util.getFirstNamedAncestor(getClass()).getSimpleName() +
+                " - writes a summary of each track to a CSV file" + (writeRetired ? " as tracks are retired" : "");
+    }
+
+    public void setCommentPrefix(String commentPrefix) {
+        csv.setCommentPrefix(commentPrefix);
+    }
+
+    /** Writes a comment to the file, such as the runtime parameters. */
+    public void writeComment(String comment) throws IOException {
+        csv.writeComment(comment);
+    }
+
+    /** Returns the units that positions and distances are written in. */
+    public OutputUnits getUnits() {
+        return units;
+    }
+
+    // Filter methods
+
+    @Override
+    public void handle(FrameSnapshot frame) {
+        final Params opts = frame.getParams();
+        if (!opts.grParams.running)
+            return;
+        fps = userFps > 0 ? userFps : frame.getFps();
+        try {
+            update(frame, frame.getFrameIndex(), units.getScaleFactor(opts.srcParams.frameSize));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void onCameraOpened(VideoPlayer camera) {
+    }
+
+    @Override
+    public void onDone(VideoPlayer camera) {
+        try {
+            close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // =================================================================
+    // Private methods
+
+    /** Updates the statistics of the tracks in a frame, and writes the rows of any retired tracks if requested. */
+    private void update(FrameSnapshot frame, int frameIndex, double scaleFactor) throws IOException {
+        for (int i = 0; i < frame.trackCount(); i++) {
+            final double tx = frame.trackX(i) * scaleFactor;
+            final double ty = frame.trackY(i) * scaleFactor;
+            int s = slots.get(frame.trackId(i));
+            if (s == LongIntMap.NO_VALUE) {
+                s = allocate(frame.trackId(i));
+                firstFrame[s] = lastMoved[s] = frameIndex;
+                points[s] = 1;
+                detections[s] = 0;
+                startX[s] = x[s] = tx;
+                startY[s] = y[s] = ty;
+                pathLength[s] = maxDisplacement[s] = maxSpeed[s] = 0;
+                sumX[s] = tx;
+                sumY[s] = ty;
+                sumSq[s] = tx * tx + ty * ty;
+            } else if (frame.trackPositionChanged(i)) {
+                final double step = Math.hypot(tx - x[s], ty - y[s]);
+                pathLength[s] += step;
+                maxSpeed[s] = Math.max(maxSpeed[s], step * fps / (frameIndex - lastSeen[s]));
+                maxDisplacement[s] = Math.max(maxDisplacement[s], Math.hypot(tx - startX[s], ty - startY[s]));
+                x[s] = tx;
+                y[s] = ty;
+                sumX[s] += tx;
+                sumY[s] += ty;
+                sumSq[s] += tx * tx + ty * ty;
+                points[s]++;
+                lastMoved[s] = frameIndex;
+            }
+            if (frame.trackLastDetectedAt(i) == frameIndex)
+                detections[s]++;
+            lastSeen[s] = frameIndex;
+        }
+
+        // Tracks which are no longer present have been retired
+        int n = 0;
+        boolean wroteRows = false;
+        for (int i = 0; i < numLive; i++) {
+            final int s = live[i];
+            if (lastSeen[s] == frameIndex) {
+                live[n++] = s;
+            } else if (writeRetired) {
+                writeSummary(s);
+                free(s);
+                wroteRows = true;
+            }
+        }
+        numLive = n;
+        if (wroteRows)
+            csv.flush();
+    }
+
+    private void close() throws IOException {
+        // Write the remaining tracks in ID order
+        final long[] ids = new long[slots.size()];
+        int n = 0;
+        for (int s = 0; s < numSlots; s++) {
+            if (slots.get(trackId[s]) == s)
+                ids[n++] = trackId[s];
+        }
+        Arrays.sort(ids, 0, n);
+        for (int i = 0; i < n; i++)
+            writeSummary(slots.get(ids[i]));
+        csv.close();
+    }
+
+    private void writeSummary(int s) throws IOException {
+        final double duration = (lastMoved[s] - firstFrame[s]) / fps;
+        final int present = lastSeen[s] - firstFrame[s] + 1;
+        final double meanX = sumX[s] / points[s];
+        final double meanY = sumY[s] / points[s];
+        // Root mean square distance of the points from their centroid
+        final double diffusion = Math.sqrt(Math.max(0, sumSq[s] / points[s] - meanX * meanX - meanY * meanY));
+        csv.writeValues(new Object[]{trackId[s], firstFrame[s] - 1, lastMoved[s] - 1,
+                (firstFrame[s] - 1) / fps, (lastMoved[s] - 1) / fps, duration,
+                points[s], detections[s], (double) detections[s] / present,
+                pathLength[s], maxDisplacement[s], Math.hypot(x[s] - startX[s], y[s] - startY[s]), diffusion,
+                duration > 0 ? pathLength[s] / duration : Double.NaN, maxSpeed[s],
+                startX[s], startY[s], x[s], y[s]});
+    }
+
+    /** Returns a slot for a new track, and adds it to the live tracks. */
+    private int allocate(long id) {
+        final int s;
+        if (numFree > 0) {
+            s = freeSlots[--numFree];
+        } else {
+            if (numSlots == capacity)
+                grow(Math.max(16, 2 * capacity));
+            s = numSlots++;
+        }
+        trackId[s] = id;
+        slots.put(id, s);
+        live[numLive++] = s;
+        return s;
+    }
+
+    private void free(int s) {
+        slots.remove(trackId[s]);
+        freeSlots[numFree++] = s;
+    }
+
+    private void grow(int n) {
+        capacity = n;
+        freeSlots = Arrays.copyOf(freeSlots, n);
+        live = Arrays.copyOf(live, n);
+        trackId = Arrays.copyOf(trackId, n);
+        firstFrame = Arrays.copyOf(firstFrame, n);
+        lastSeen = Arrays.copyOf(lastSeen, n);
+        lastMoved = Arrays.copyOf(lastMoved, n);
+        points = Arrays.copyOf(points, n);
+        detections = Arrays.copyOf(detections, n);
+        startX = Arrays.copyOf(startX, n);
+        startY = Arrays.copyOf(startY, n);
+        x = Arrays.copyOf(x, n);
+        y = Arrays.copyOf(y, n);
+        pathLength = Arrays.copyOf(pathLength, n);
+        maxDisplacement = Arrays.copyOf(maxDisplacement, n);
+        maxSpeed = Arrays.copyOf(maxSpeed, n);
+        sumX = Arrays.copyOf(sumX, n);
+        sumY = Arrays.copyOf(sumY, n);
+        sumSq = Arrays.copyOf(sumSq, n);
+    }
+}
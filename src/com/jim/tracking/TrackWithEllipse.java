@@ -14,6 +14,8 @@ public class TrackWithEllipse extends KalmanTrack {
         this.ellipse = ellipse;
     }
 
+    /** Returns the ellipse fitted to the object which started this track, centred on the current position,
+     * or null if no ellipse was fitted. */
     RotatedRect getEllipse() {
         return ellipse;
     }
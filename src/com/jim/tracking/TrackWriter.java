@@ -0,0 +1,301 @@
+package com.jim.tracking;
+
+import com.jim.Params;
+import org.opencv.core.Size;
+
+import java.io.IOException;
+
+/**
+ * Writes the positions of tracked objects to a file. Subclasses define the file format.
+ *
+ * Each row contains the frame number, time, track ID, position, and whether the position changed.
+ * Unless all frames are written, only the first and last frame at any position are written.
+ * A final row with track ID -1 records the last frame and the frame size.
+ * Optionally, a {@link TrackIndex} is written alongside the file once it is complete.
+ * Optionally, tracks are simplified by only writing the rows needed to reconstruct them within a tolerance
+ * (see {@link #setSimplification}), in which case a row may be held until a later frame shows that it is needed,
+ * so it is written late and the file is not strictly in frame order.
+ * Optionally, the rows of new tracks are held back until the track is confirmed (see {@link #setConfirmation}),
+ * in which case the rows of a track are written late, so the file is not strictly in frame order.
+ */
+public abstract class TrackWriter implements MotionDetector.SnapshotFilter {
+
+    /** Default maximum number of rows which can be omitted between written rows when simplifying tracks. */
+    public static final int DEFAULT_SIMPLIFICATION_WINDOW = 32;
+    /** Default maximum number of rows which are held for a track before it is confirmed. */
+    public static final int DEFAULT_MAX_PENDING_ROWS = 1000;
+
+    private final boolean writeAllFrames;
+    private final int fps;
+    private boolean writeTracks;
+    // Keep track of frames which were skipped in output
+    private final SkippedPositions skippedPos = new SkippedPositions();
+    private Size frameSize = null;
+    private int lastFrameIndex;
+    private final OutputUnits units = new OutputUnits();
+    private double scaleFactor;
+    // Optional index of tracks, written when the file is closed
+    private TrackIndex index;
+    private String indexFile;
+    private long row;
+    // Optional track simplification
+    private TrackSimplifier simplifier;
+    // Optional buffer for unconfirmed tracks
+    private PendingTracks pending;
+    private boolean verbose;
+
+    /**
+     * @param writeAllFrames If true, a row is written for every track in every frame, otherwise
+     *                       only when the position changes.
+     * @param fps Frame rate used to calculate times. If 0, the frame rate of the input video is used.
+     */
+    protected TrackWriter(boolean writeAllFrames, int fps) {
+        this.writeAllFrames = writeAllFrames;
+        this.fps = fps;
+    }
+
+    public void setWriteTracks(boolean writeTracks) {
+        this.writeTracks = writeTracks;
+    }
+
+    /** Returns the units that positions are written in. */
+    public OutputUnits getUnits() {
+        return units;
+    }
+
+    /** Requests that an index of the tracks is written to the named file once the track file is complete. */
+    public void setIndexFile(String indexFile) {
+        this.indexFile = indexFile;
+        index = indexFile != null ? new TrackIndex() : null;
+    }
+
+    /**
+     * Only writes the rows needed to reconstruct each track, by joining the written rows with straight lines,
+     * to within a tolerance. The first and last rows of a track, and rows which record the last frame at a
+     * position, are always written. Shouldn't be used when all frames are written.
+     *
+     * @param tolerance Maximum distance between an omitted row and the simplified track, in output units.
+     * @param window Maximum number of rows which can be omitted between written rows.
+     */
+    public void setSimplification(double tolerance, int window) {
+        simplifier = new TrackSimplifier(tolerance, window, this::writeConfirmedRow);
+    }
+
+    /**
+     * Holds back the rows of new tracks until the track is confirmed, by moving far enough from its start,
+     * lasting long enough and having enough rows. Tracks which are retired, or tracking finishes, before they are
+     * confirmed are not written, nor are tracks which aren't confirmed within {@code maxRows} rows.
+     * Criteria which are 0 are ignored.
+     *
+     * @param minDisplacement Minimum distance from the start of a track, in output units.
+     * @param minDuration Minimum duration of a track in seconds.
+     * @param minPoints Minimum number of rows in a track.
+     * @param maxRows Maximum number of rows held for an unconfirmed track, which limits memory use.
+     */
+    public void setConfirmation(double minDisplacement, double minDuration, int minPoints, int maxRows) {
+        pending = new PendingTracks(minDisplacement, minDuration, minPoints, maxRows);
+    }
+
+    /** Writes a comment to the file, such as the runtime parameters. */
+    public abstract void writeComment(String comment) throws IOException;
+
+    // Filter methods
+
+    @Override
+    public void handle(FrameSnapshot frame) {
+        final Params opts = frame.getParams();
+        if (!opts.grParams.running)
+            return;
+
+        int frameIndex = frame.getFrameIndex();
+        verbose = opts.grParams.verbose;
+        frameSize = opts.srcParams.frameSize;
+        lastFrameIndex = frameIndex;
+        final double fps = fps(frame.getFps());
+
+        scaleFactor = units.getScaleFactor(frameSize);
+
+        try {
+            writeTracks(frame, frameIndex, fps);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void onCameraOpened(VideoPlayer camera) {
+        // Calculate output units conversion
+    }
+
+    @Override
+    public void onDone(VideoPlayer camera) {
+        try {
+            finishFile(lastFrameIndex, fps(camera.getFps()));
+            close();
+            if (pending != null) {
+                pending.dropAll();
+                if (verbose)
+                    System.out.println(pending.getStatistics());
+            }
+            if (index != null)
+                index.write(indexFile);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // =================================================================
+    // Methods to be implemented by subclasses
+
+    /** Writes a single row.
+     *
+     * @param frame 0-based frame number.
+     * @param time Frame time in seconds.
+     * @param trackId Track ID, or -1 for the final frame size row.
+     * @param x X position in output units.
+     * @param y Y position in output units.
+     * @param valueChanged True if the position changed in this frame.
+     */
+    protected abstract void writeRow(int frame, double time, long trackId, double x, double y, boolean valueChanged) throws IOException;
+
+    /** Finishes writing and closes the file. */
+    protected abstract void close() throws IOException;
+
+    /**
+     * Writes the tracks in a frame. By default, writes a row for each track whose position changed
+     * (or every track if all frames are written).
+     *
+     * @param frameIndex Index of the frame (1 greater than the frame number which is written).
+     * @param fps Frame rate used to calculate times.
+     */
+    protected void writeTracks(FrameSnapshot frame, int frameIndex, double fps) throws IOException {
+        if (writeTracks) {
+            for (int i = 0; i < frame.trackCount(); i++) {
+                final long trackId = frame.trackId(i);
+                final boolean valueChanged = frame.trackPositionChanged(i);
+                if (writeAllFrames || valueChanged) {
+                    // When skipping frames, only the first and last frame at any position are written.
+                    // Have to write the last frame retrospectively once it is known
+                    final int skipped = skippedPos.get(trackId);
+                    if (skipped >= 0) {
+                        // Write the last frame
+                        writePos(frameIndex - 1, fps, trackId, skippedPos.x(skipped), skippedPos.y(skipped), false);
+                        skippedPos.remove(skipped);
+                    }
+
+                    // Write this frame
+                    writePos(frameIndex, fps, trackId, frame.trackX(i), frame.trackY(i), valueChanged);
+                } else {
+                    // Save the position so that the last frame can be written out
+                    if (!writeAllFrames)
+                        skippedPos.put(trackId, frameIndex, frame.trackX(i), frame.trackY(i));
+                }
+                if (simplifier != null)
+                    simplifier.seen(trackId, frameIndex);
+                if (pending != null)
+                    pending.seen(trackId, frameIndex);
+            }
+            if (!writeAllFrames)
+                skippedPos.forgetRetired(frameIndex);
+            if (simplifier != null)
+                simplifier.flushRetired(frameIndex);
+            if (pending != null)
+                pending.dropRetired(frameIndex);
+        } else if (frame.getDetections().size() == 1) {
+            // Only writing a single track, so give it id 1
+            writePos(frameIndex, fps, 1, frame.getDetections().x(0), frame.getDetections().y(0), true);
+        }
+    }
+
+    /** Returns the byte offset in the file of the next row, or -1 if rows can't be located by offset. */
+    protected long getOffset() {
+        return -1;
+    }
+
+    /**
+     * Writes any rows which are being held for simplification, then the final row.
+     *
+     * @param frameIndex Index of the last frame in the file (1 greater than the frame number which is written).
+     * @param fps Frame rate used to calculate times.
+     */
+    protected void finishFile(int frameIndex, double fps) throws IOException {
+        if (simplifier != null)
+            simplifier.flushAll();
+        // Note that we don't want to write a final frame for stopped tracks,
+        // but write a final frame with special ID -1 so that total number of frames
+        // (and output frame size) can be determined, even if nothing is moving at the end
+        if (frameSize != null)
+            writePos(frameIndex, fps, -1, frameSize.width, frameSize.height, false);
+    }
+
+    /** Returns the approximate (uncompressed) size of the file so far in bytes, or -1 if it isn't known. */
+    protected long getSize() {
+        return -1;
+    }
+
+    /**
+     * Writes the index of the rows written so far, if there is an index, and starts a new index
+     * for rows written to a new file.
+     */
+    protected void restartIndex(String newIndexFile) throws IOException {
+        if (index != null) {
+            index.write(indexFile);
+            indexFile = newIndexFile;
+            index = new TrackIndex();
+            row = 0;
+        }
+    }
+
+    /** Returns the user specified frame rate, or 0 if the input video frame rate is used. */
+    protected int getFps() {
+        return fps;
+    }
+
+    // =================================================================
+    // Private methods
+
+    /** Returns the frame rate to use for converting frame indices to times, either user specified or from the video. */
+    private double fps(double videoFps) {
+        return this.fps > 0 ? this.fps : videoFps;
+    }
+
+    private void writePos(int frameIndex, double fps, long trackId, double x, double y, boolean valueChanged) throws IOException {
+        // Convert frame index to time in seconds
+        // Convert point to user coordinates
+        final int frame = frameIndex - 1;
+        final double time = frame / fps;
+        x *= scaleFactor;
+        y *= scaleFactor;
+        if (simplifier != null && trackId != -1)
+            simplifier.add(frame, time, trackId, x, y, valueChanged);
+        else
+            writeConfirmedRow(frame, time, trackId, x, y, valueChanged);
+    }
+
+    /** Writes a row, unless it belongs to a track which hasn't been confirmed yet. */
+    private void writeConfirmedRow(int frame, double time, long trackId, double x, double y, boolean valueChanged) throws IOException {
+        if (pending != null && trackId != -1 && !pending.isConfirmed(trackId)) {
+            final int slot = pending.add(trackId, frame, time, x, y, valueChanged);
+            if (slot >= 0) {
+                // Newly confirmed, so write all of its rows
+                for (int i = 0; i < pending.rows(slot); i++)
+                    writeIndexedRow(pending.frame(slot, i), pending.time(slot, i), trackId, pending.x(slot, i), pending.y(slot, i), pending.isValueChanged(slot, i));
+                pending.confirm(slot);
+            }
+        } else {
+            writeIndexedRow(frame, time, trackId, x, y, valueChanged);
+        }
+    }
+
+    /** Writes a row and adds it to the index, if there is one. */
+    private void writeIndexedRow(int frame, double time, long trackId, double x, double y, boolean valueChanged) throws IOException {
+        if (index == null) {
+            writeRow(frame, time, trackId, x, y, valueChanged);
+        } else {
+            final long start = getOffset();
+            writeRow(frame, time, trackId, x, y, valueChanged);
+            index.add(trackId, frame, time, x, y, row, start, getOffset());
+            row++;
+        }
+    }
+}
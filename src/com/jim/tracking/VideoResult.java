@@ -4,12 +4,10 @@ import com.jim.Params;
 import org.opencv.core.Mat;
 import org.opencv.videoio.VideoWriter;
 
-import java.util.List;
-
 /**
  * Created by jim_m on 24-May-17.
  */
-public class VideoResult implements MotionDetector.Filter {
+public class VideoResult implements MotionDetector.SnapshotFilter {
     private VideoWriter writer;
     private final String fileName;
     private final Params.GraphicParams opt;
@@ -20,12 +18,23 @@ public class VideoResult implements MotionDetector.Filter {
     }
 
     @Override
-    public void handle(List<MotionDetector.DetectedObject> detectedObjects, List<TrackWithEllipse> tracks, Mat greyFrame, Mat feedbackImage, Params opts, VideoPlayer camera) {
+    public void handle(FrameSnapshot frame) {
+        Mat feedbackImage = frame.getFeedbackImage();
         // The "if" is a bit of a hack - the feedback frame is (possibly) the wrong size until tracking has started
-        if (feedbackImage.size().equals(opts.srcParams.frameSize))
+        if (feedbackImage.size().equals(frame.getParams().srcParams.frameSize))
             writer.write(feedbackImage);
     }
 
+    @Override
+    public boolean needsFeedbackImage() {
+        return true;
+    }
+
+    @Override
+    public boolean canDropFrames() {
+        return true;
+    }
+
     @Override
     public void onCameraOpened(VideoPlayer camera) {
 
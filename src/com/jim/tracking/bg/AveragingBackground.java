@@ -33,33 +33,49 @@ public class AveragingBackground extends BackgroundHandler {
     private final long framesToAverage;
     private final boolean useStartFrames;
     private long frameCount = 0;
+    // Running average of frames
+    private Mat accumulator;
+    // True if the accumulator has changed since background was last updated
+    private boolean dirty;
 
     private AveragingBackground(long framesToAverage, boolean useStartFrames) {
         this.framesToAverage = framesToAverage;
         this.useStartFrames = useStartFrames;
     }
 
+    /** Returns the 8-bit background. The same Mat is returned every time,
+     * it is only recalculated if the average has changed since the last call. */
     @Override
     public Mat getBackground() {
-        final Mat bg = super.getBackground();
-        Mat r = null;
-        if (bg != null) {
-            r = new Mat();
-            bg.convertTo(r, CvType.CV_8U);
+        if (accumulator == null)
+            return null;
+        if (dirty) {
+            if (background == null)
+                background = new Mat();
+            accumulator.convertTo(background, CvType.CV_8U);
+            dirty = false;
         }
-        return r;
+        return background;
+    }
+
+    @Override
+    public void reset() {
+        accumulator = null;
+        frameCount = 0;
     }
 
     @Override
     public void processFrame(Mat frame) {
         // If it's the first frame...
-        if (background == null)
+        if (accumulator == null)
             // Create a zero Matrix
-            background = Mat.zeros(frame.size(), CvType.CV_64F);
+            accumulator = Mat.zeros(frame.size(), CvType.CV_32F);
 
-        if (!useStartFrames || frameCount < framesToAverage)
+        if (!useStartFrames || frameCount < framesToAverage) {
             // Add this frame to the background
-            Imgproc.accumulateWeighted(frame, background, 1.0 / framesToAverage);
+            Imgproc.accumulateWeighted(frame, accumulator, 1.0 / framesToAverage);
+            dirty = true;
+        }
         frameCount++;
     }
 
@@ -74,9 +90,17 @@ public class AveragingBackground extends BackgroundHandler {
     }
 
     public static class PreviousFrame extends FirstFrame {
+        // The other half of the double buffer
+        private Mat spare = new Mat();
+
         @Override
         public void processFrame(Mat frame) {
-            background = frame.clone();
+            // Copy into the spare buffer (which only allocates if the frame size changes),
+            // then swap, so the previously returned background remains valid until the next frame
+            frame.copyTo(spare);
+            Mat previous = background == null ? new Mat() : background;
+            background = spare;
+            spare = previous;
         }
     }
 }
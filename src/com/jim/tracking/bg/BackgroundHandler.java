@@ -20,6 +20,12 @@ public abstract class BackgroundHandler {
         return background;
     }
 
+    /** Discards the current background, e.g. after a sudden change in lighting.
+     * By default, the background is rebuilt from subsequent frames. */
+    public void reset() {
+        background = null;
+    }
+
     public boolean canHandleColour() {
         return false;
     }
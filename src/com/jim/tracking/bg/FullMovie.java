@@ -53,7 +53,7 @@ public class FullMovie extends BackgroundHandler {
             @Override
             public boolean onFrame(Mat greyFrame, Mat colourFrame) throws IOException {
                 if (avg[0] == null)
-                    avg[0] = Mat.zeros(greyFrame.size(), CvType.CV_64F);
+                    avg[0] = Mat.zeros(greyFrame.size(), CvType.CV_32F);
                 Imgproc.accumulateWeighted(greyFrame, avg[0], 1.0 / numFrames);
                 return true; // Success
             }
@@ -63,11 +63,16 @@ public class FullMovie extends BackgroundHandler {
             }
         };
 
-        new FrameLoop().run(handler, arg.videoFile, arg.params.grParams, arg.params.srcParams, arg.params.trParams);
+        new FrameLoop().run(handler, arg.videoFile, arg.params);
 
         return avg[0];
     }
 
+    /** The background is derived from the entire video, so it can't be rebuilt. */
+    @Override
+    public void reset() {
+    }
+
     @Override
     public void processFrame(Mat frame) {
         // Resize if required
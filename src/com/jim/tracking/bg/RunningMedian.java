@@ -0,0 +1,62 @@
+package com.jim.tracking.bg;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+/**
+ * A background handler which maintains an approximate running median of frames,
+ * using the sigma-delta method: each time the background is updated, every background pixel
+ * moves 1 grey level towards the corresponding frame pixel.
+ *
+ * Unlike averaging, objects which move slowly (or stop for a while) are not smeared into
+ * the background, and unlike FullMovie, it only requires a single pass through the video.
+ * The background is initialised from the first frame. To speed up convergence, the
+ * background is updated every frame during the warm-up period, then every
+ * {@code updateInterval} frames afterwards.
+ */
+public class RunningMedian extends BackgroundHandler {
+
+    public static void register() {
+        BackgroundHandler.registerHandlerFactory("RunningMedian", arg -> {
+            if (arg.userArgs.length > 2)
+                throw new RuntimeException("Incorrect arguments for RunningMedian, expected RunningMedian[:<update-interval>[:<warm-up-frames>]]");
+            final int updateInterval = arg.userArgs.length > 0 ? Integer.parseInt(arg.userArgs[0]) : 1;
+            final int warmUp = arg.userArgs.length > 1 ? Integer.parseInt(arg.userArgs[1]) : 0;
+            if (updateInterval < 1 || warmUp < 0)
+                throw new RuntimeException("Invalid arguments for RunningMedian, update interval must be > 0 and warm-up must be >= 0");
+            return new RunningMedian(updateInterval, warmUp);
+        });
+    }
+
+    private static final Scalar ONE = new Scalar(1);
+
+    private final int updateInterval;
+    private final int warmUp;
+    private long frameCount = 0;
+    // Pixels where the frame is brighter/darker than the background
+    private final Mat brighter = new Mat();
+    private final Mat darker = new Mat();
+
+    /**
+     * @param updateInterval Background is updated every {@code updateInterval} frames.
+     * @param warmUp Number of initial frames during which the background is updated every frame.
+     */
+    public RunningMedian(int updateInterval, int warmUp) {
+        this.updateInterval = updateInterval;
+        this.warmUp = warmUp;
+    }
+
+    @Override
+    public void processFrame(Mat frame) {
+        if (background == null) {
+            background = frame.clone();
+        } else if (frameCount < warmUp || frameCount % updateInterval == 0) {
+            Core.compare(frame, background, brighter, Core.CMP_GT);
+            Core.compare(frame, background, darker, Core.CMP_LT);
+            Core.add(background, ONE, background, brighter);
+            Core.subtract(background, ONE, background, darker);
+        }
+        frameCount++;
+    }
+}
@@ -1,15 +1,12 @@
 package com.jim.ui;
 
 import com.jim.Params;
+import com.jim.tracking.FrameSnapshot;
 import com.jim.tracking.MotionDetector;
-import com.jim.tracking.TrackWithEllipse;
 import com.jim.tracking.VideoPlayer;
 import javafx.application.Platform;
-import org.opencv.core.Mat;
 
-import java.util.List;
-
-public class HeadlessController implements MotionDetector.Filter {
+public class HeadlessController implements MotionDetector.SnapshotFilter {
     // Video + all tracking and debugging parameters
     protected Params params;
 
@@ -18,7 +15,12 @@ public class HeadlessController implements MotionDetector.Filter {
     }
 
     @Override
-    public void handle(List<MotionDetector.DetectedObject> detectedObjects, List<TrackWithEllipse> tracks, Mat greyFrame, Mat feedbackImage, Params opts, VideoPlayer camera) {
+    public void handle(FrameSnapshot frame) {
+    }
+
+    @Override
+    public boolean canDropFrames() {
+        return true;
     }
 
     @Override
@@ -1,8 +1,8 @@
 package com.jim.ui;
 
 import com.jim.Params;
+import com.jim.tracking.FrameSnapshot;
 import com.jim.tracking.MotionDetector;
-import com.jim.tracking.TrackWithEllipse;
 import com.jim.tracking.VideoPlayer;
 import com.jim.util.GraphicMeasurementLine;
 import com.jim.util.Util;
@@ -22,12 +22,11 @@ import org.opencv.core.Point;
 import org.opencv.core.Size;
 
 import java.io.IOException;
-import java.util.List;
 
 import static com.sun.javafx.application.PlatformImpl.runAndWait;
 import static java.lang.StrictMath.sqrt;
 
-public class MainController extends HeadlessController implements MotionDetector.Filter {
+public class MainController extends HeadlessController implements MotionDetector.SnapshotFilter {
 
     private Stage stage;
     private GraphicMeasurementLine measurementLine;
@@ -147,11 +146,11 @@ public class MainController extends HeadlessController implements MotionDetector
     }
 
     @Override
-    public void handle(List<MotionDetector.DetectedObject> detectedObjects, List<TrackWithEllipse> tracks, Mat greyFrame, Mat feedbackImage, Params opts, VideoPlayer camera) {
-        drawAnnotations(feedbackImage);
+    public void handle(FrameSnapshot frame) {
+        drawAnnotations(frame.getFeedbackImage());
 
-        timer.blockTilTime(camera.getFrameIndex());
-        displayFrame(camera.getFrameIndex(), feedbackImage);
+        timer.blockTilTime(frame.getFrameIndex());
+        displayFrame(frame.getFrameIndex(), frame.getFeedbackImage());
 
         // Give the event thread a chance to do some drawing
         try {
@@ -161,6 +160,11 @@ public class MainController extends HeadlessController implements MotionDetector
         }
     }
 
+    @Override
+    public boolean needsFeedbackImage() {
+        return true;
+    }
+
     @Override
     public void onDone(VideoPlayer camera) {
         System.out.println("Finished");
@@ -262,13 +266,15 @@ public class MainController extends HeadlessController implements MotionDetector
 
     @SuppressWarnings("unused")
     private void onMaskCancelled(Popup popup) {
-        params.trParams.setMask(maskPopup.getOldMask());
+        final com.jim.tracking.Region mask = maskPopup.getOldMask();
+        params.update(p -> p.trParams.setMask(mask));
         maskPopup = null;
     }
 
     @SuppressWarnings("unused")
     private void onMaskOk(Popup popup) {
-        params.trParams.setMask(maskPopup.getNewMask());
+        final com.jim.tracking.Region mask = maskPopup.getNewMask();
+        params.update(p -> p.trParams.setMask(mask));
         maskPopup = null;
     }
 
@@ -314,7 +320,7 @@ public class MainController extends HeadlessController implements MotionDetector
         fasterBtn.setDisable(true);
         frameSlider.setDisable(true);
         msg.setDisable(true);
-        params.grParams.running = false;
+        params.update(p -> p.grParams.running = false);
     }
 
     private void clearMeasuringLine() {
@@ -352,7 +358,7 @@ public class MainController extends HeadlessController implements MotionDetector
     }
 
     private void updatePlayButton(boolean nowPlaying) {
-        params.grParams.running = nowPlaying;
+        params.update(p -> p.grParams.running = nowPlaying);
         this.playButton.setText(params.grParams.running ? "Pause" : "Play");
     }
 
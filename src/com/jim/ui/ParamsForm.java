@@ -21,10 +21,10 @@ public class ParamsForm {
     private Params params;
 
     public void initialize() {
-        tieSliderToLabel(minContourSlider, minContourLabel, value -> params.trParams.minContourArea = value);
-        tieSliderToLabel(maxContourSlider, maxContourLabel, value -> params.trParams.maxContourArea = value);
-        tieSliderToLabel(minContourLenSlider, minContourLenLabel, value -> params.trParams.minContourLength = value);
-        tieSliderToLabel(maxContourLenSlider, maxContourLenLabel, value -> params.trParams.maxContourLength = value);
+        tieSliderToLabel(minContourSlider, minContourLabel, value -> params.update(p -> p.trParams.minContourArea = value));
+        tieSliderToLabel(maxContourSlider, maxContourLabel, value -> params.update(p -> p.trParams.maxContourArea = value));
+        tieSliderToLabel(minContourLenSlider, minContourLenLabel, value -> params.update(p -> p.trParams.minContourLength = value));
+        tieSliderToLabel(maxContourLenSlider, maxContourLenLabel, value -> params.update(p -> p.trParams.maxContourLength = value));
     }
 
     public void setParams(Params params) {
@@ -0,0 +1,135 @@
+package com.jim.util;
+
+import java.util.Arrays;
+
+/**
+ * A map from long keys to int values which doesn't box keys or values, so adding and looking up entries
+ * doesn't allocate memory (other than when the map grows).
+ *
+ * Uses open addressing with linear probing.
+ */
+public class LongIntMap {
+    /** Value returned by {@link #get(long)} for keys which aren't in the map. */
+    public static final int NO_VALUE = -1;
+    private static final double MAX_LOAD = 0.5;
+
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+
+    public LongIntMap() {
+        this(16);
+    }
+
+    public LongIntMap(int expectedSize) {
+        allocate(tableSize(expectedSize));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Returns the value for a key, or {@link #NO_VALUE} if the key isn't in the map. */
+    public int get(long key) {
+        int i = slot(key);
+        return used[i] ? values[i] : NO_VALUE;
+    }
+
+    public boolean containsKey(long key) {
+        return used[slot(key)];
+    }
+
+    public void put(long key, int value) {
+        int i = slot(key);
+        if (!used[i]) {
+            if (size + 1 > keys.length * MAX_LOAD) {
+                rehash(keys.length * 2);
+                i = slot(key);
+            }
+            used[i] = true;
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+    }
+
+    /** Removes a key from the map, and returns its value, or {@link #NO_VALUE} if the key wasn't in the map. */
+    public int remove(long key) {
+        final int mask = keys.length - 1;
+        int i = slot(key);
+        if (!used[i])
+            return NO_VALUE;
+        final int value = values[i];
+        // Shift later entries in the probe sequence back, so that lookups don't stop at the gap
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (!used[j])
+                break;
+            final int home = home(keys[j]);
+            // Move the entry at j into the gap at i unless its home slot lies cyclically in (i, j]
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        used[i] = false;
+        size--;
+        return value;
+    }
+
+    /** Removes all entries. */
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    // =================================================================
+    // Private methods
+
+    private static int tableSize(int expectedSize) {
+        int n = 16;
+        while (n * MAX_LOAD < expectedSize)
+            n *= 2;
+        return n;
+    }
+
+    private void allocate(int n) {
+        keys = new long[n];
+        values = new int[n];
+        used = new boolean[n];
+    }
+
+    /** Returns the slot containing the key, or the empty slot where it should be added. */
+    private int slot(long key) {
+        final int mask = keys.length - 1;
+        int i = home(key);
+        while (used[i] && keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    /** Returns the slot where a key would be stored if there were no collisions. */
+    private int home(long key) {
+        // Mix the bits so that sequential keys are spread through the table
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+    }
+
+    private void rehash(int n) {
+        final long[] oldKeys = keys;
+        final int[] oldValues = values;
+        final boolean[] oldUsed = used;
+        allocate(n);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int j = slot(oldKeys[i]);
+                used[j] = true;
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}